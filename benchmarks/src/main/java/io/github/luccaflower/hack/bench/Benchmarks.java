@@ -0,0 +1,21 @@
+package io.github.luccaflower.hack.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs JMH with its usual command line, adding the GC profiler unless a profiler is chosen, so that allocation per
+ * operation is reported next to every score.
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var arguments = new ArrayList<>(List.of(args));
+        if (!arguments.contains("-prof") && !arguments.contains("-h") && !arguments.contains("-l")) {
+            arguments.addAll(List.of("-prof", "gc"));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(String[]::new));
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.luccaflower.hack.bench;
+
+import io.github.luccaflower.hack.Lexer;
+import io.github.luccaflower.hack.VMCodeWriter;
+import io.github.luccaflower.hack.VMInstruction;
+import io.github.luccaflower.hack.VMParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a parsed corpus with {@link VMCodeWriter#write(WritableByteChannel)} into a channel that discards it, so
+ * only code generation and buffering are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CodeWriterBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    private int lines;
+
+    private final ArrayDeque<VMInstruction> instructions = new ArrayDeque<>();
+
+    @Setup
+    public void setup() throws IOException, Lexer.ParseException {
+        new VMParser("Corpus").parse(new StringReader(Corpus.text("Corpus", lines)), instructions::add);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        var sink = new DiscardingChannel();
+        new VMCodeWriter(instructions).write(sink);
+        return sink.written;
+    }
+
+    private static final class DiscardingChannel implements WritableByteChannel {
+        private long written = 0;
+
+        @Override
+        public int write(ByteBuffer src) {
+            var remaining = src.remaining();
+            src.position(src.limit());
+            written += remaining;
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.luccaflower.hack.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Synthetic VM programs of a given number of lines, made of functions shaped like compiled Jack code: a loop, segment
+ * traffic, comparisons and a call to the previous function.
+ */
+final class Corpus {
+    /**
+     * Lines per file when a corpus is split into a directory.
+     */
+    static final int LINES_PER_FILE = 10_000;
+
+    private Corpus() {
+    }
+
+    /**
+     * A program of at least {@code lines} lines whose functions are named after {@code file}.
+     */
+    static String text(String file, int lines) {
+        var out = new StringBuilder(lines * 16);
+        var written = 0;
+        for (int f = 0; written < lines; f++) {
+            written += function(out, file, f);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a program of at least {@code lines} lines to {@code Corpus.vm} in {@code directory}.
+     */
+    static Path file(Path directory, int lines) {
+        return write(directory.resolve("Corpus.vm"), text("Corpus", lines));
+    }
+
+    /**
+     * Writes a program of at least {@code lines} lines to {@code directory}, in files of {@link #LINES_PER_FILE} lines
+     * plus a {@code Sys.vm} that calls into the first of them.
+     */
+    static Path directory(Path directory, int lines) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i * LINES_PER_FILE < lines; i++) {
+            write(directory.resolve("Unit" + i + ".vm"),
+                    text("Unit" + i, Math.min(LINES_PER_FILE, lines - i * LINES_PER_FILE)));
+        }
+        write(directory.resolve("Sys.vm"), """
+                function Sys.init 0
+                push constant 10
+                call Unit0.f0 1
+                pop temp 0
+                label HALT
+                goto HALT
+                """);
+        return directory;
+    }
+
+    private static int function(StringBuilder out, String file, int f) {
+        var name = file + ".f" + f;
+        var callee = file + ".f" + Math.max(0, f - 1);
+        out.append("function ").append(name).append(" 2\n")
+                .append("push argument 0\n")
+                .append("push constant ").append(f % 32768).append('\n')
+                .append("add\n")
+                .append("pop local 0\n")
+                .append("label LOOP\n")
+                .append("push local 0\n")
+                .append("push constant 1\n")
+                .append("sub\n")
+                .append("pop local 0\n")
+                .append("push local 0\n")
+                .append("push constant 0\n")
+                .append("gt\n")
+                .append("if-goto LOOP\n")
+                .append("push this 1\n")
+                .append("pop that 2\n")
+                .append("push static ").append(f % 8).append('\n')
+                .append("push local 1\n")
+                .append("call ").append(callee).append(" 1\n")
+                .append("eq\n")
+                .append("not\n")
+                .append("pop temp 0\n")
+                .append("push pointer 0\n")
+                .append("return\n");
+        return 24;
+    }
+
+    private static Path write(Path path, String text) {
+        try {
+            return Files.writeString(path, text, StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.luccaflower.hack.bench;
+
+import io.github.luccaflower.hack.Lexer;
+import io.github.luccaflower.hack.VMInstruction;
+import io.github.luccaflower.hack.VMParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of rendering one instruction of each kind, through {@link VMInstruction#emit} into a reused buffer and
+ * through {@code toString}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstructionBenchmark {
+    @Param({
+            "push constant 7",
+            "push local 2",
+            "pop that 5",
+            "push static 3",
+            "add",
+            "eq",
+            "label LOOP",
+            "if-goto LOOP",
+            "function Main.main 4",
+            "call Main.main 2",
+            "return"})
+    private String line;
+
+    private VMInstruction instruction;
+    private final StringBuilder out = new StringBuilder();
+
+    @Setup
+    public void setup() throws Lexer.ParseException {
+        instruction = new VMParser("Main").parse(line).remove();
+    }
+
+    @Benchmark
+    public StringBuilder emit() throws IOException {
+        out.setLength(0);
+        instruction.emit(out);
+        return out;
+    }
+
+    @Benchmark
+    public String render() {
+        return VMInstruction.render(instruction);
+    }
+
+    @Benchmark
+    public String toText() {
+        return instruction.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.luccaflower.hack.bench;
+
+import io.github.luccaflower.hack.Lexer;
+import io.github.luccaflower.hack.VMInstruction;
+import io.github.luccaflower.hack.VMParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares backtracking through {@link Lexer#or} against the exception-driven combinators the lexer used to have.
+ * The alternatives are ordered so that the matching one is last, as with {@code return} in {@link VMParser}.
+ * {@link #keywordOr} and {@link #keywordChoice} pick {@code return} out of the VM command keywords, once by trying
+ * each in turn and once through {@link Lexer#choice}, which only tries the keywords starting with {@code r}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    private static final int ALTERNATIVES = 15;
+    private static final String[] KEYWORDS = {
+            "push", "pop", "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not", "label", "goto", "if-goto",
+            "function", "call", "return"
+    };
+
+    private Lexer<String> resultChain;
+    private ThrowingLexer<String> exceptionChain;
+    private Lexer<String> keywordChain;
+    private Lexer<String> keywordChoice;
+    private String program;
+
+    @Param({"1000", "100000"})
+    private int lines;
+
+    @Setup
+    public void setup() {
+        resultChain = Lexer.string("alternative0");
+        exceptionChain = ThrowingLexer.string("alternative0");
+        for (int i = 1; i < ALTERNATIVES; i++) {
+            resultChain = resultChain.or(Lexer.string("alternative" + i));
+            exceptionChain = exceptionChain.or(ThrowingLexer.string("alternative" + i));
+        }
+        keywordChain = Lexer.string(KEYWORDS[0]);
+        for (int i = 1; i < KEYWORDS.length; i++) {
+            keywordChain = keywordChain.or(Lexer.string(KEYWORDS[i]));
+        }
+        keywordChoice = Lexer.choice(Arrays.stream(KEYWORDS).map(Lexer::string).toList());
+        program = IntStream.range(0, lines)
+                .mapToObj(i -> switch (i % 4) {
+                    case 0 -> "push constant " + i;
+                    case 1 -> "call Main.f" + i + " 1";
+                    case 2 -> "add";
+                    default -> "return";
+                })
+                .collect(Collectors.joining("\n"));
+    }
+
+    @Benchmark
+    public Object resultOr() throws Lexer.ParseException {
+        return resultChain.parse("alternative" + (ALTERNATIVES - 1));
+    }
+
+    @Benchmark
+    public Object exceptionOr() throws Lexer.ParseException {
+        return exceptionChain.parse("alternative" + (ALTERNATIVES - 1));
+    }
+
+    @Benchmark
+    public Object keywordOr() throws Lexer.ParseException {
+        return keywordChain.parse("return");
+    }
+
+    @Benchmark
+    public Object keywordChoice() throws Lexer.ParseException {
+        return keywordChoice.parse("return");
+    }
+
+    @Benchmark
+    public Queue<VMInstruction> vmParser() throws Lexer.ParseException {
+        return new VMParser("Bench").parse(program);
+    }
+
+    /**
+     * The previous combinator implementation, where every mismatch throws.
+     */
+    @FunctionalInterface
+    interface ThrowingLexer<T> {
+        Matched<T> tryParse(CharSequence in) throws Lexer.ParseException;
+
+        default T parse(CharSequence in) throws Lexer.ParseException {
+            return tryParse(in).parsed();
+        }
+
+        static ThrowingLexer<String> string(String s) {
+            var pattern = Pattern.compile(Pattern.quote(s));
+            return in -> {
+                var matcher = pattern.matcher(in);
+                if (matcher.lookingAt()) {
+                    return new Matched<>(matcher.group(), in.subSequence(matcher.end(), in.length()));
+                }
+                throw new Lexer.ParseException("No match for input\n" + in);
+            };
+        }
+
+        default ThrowingLexer<T> or(ThrowingLexer<T> other) {
+            return in -> {
+                try {
+                    return tryParse(in);
+                } catch (Exception ignored) {
+                    return other.tryParse(in);
+                }
+            };
+        }
+    }
+
+    record Matched<T>(T parsed, CharSequence rest) {}
+}
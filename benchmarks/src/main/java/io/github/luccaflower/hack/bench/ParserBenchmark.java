@@ -0,0 +1,44 @@
+package io.github.luccaflower.hack.bench;
+
+import io.github.luccaflower.hack.FastVMParser;
+import io.github.luccaflower.hack.Lexer;
+import io.github.luccaflower.hack.VMParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a synthetic corpus through {@link VMParser#parse(java.io.Reader, java.util.function.Consumer)}, so the
+ * score is the cost of turning text into instructions, and {@code -prof gc} shows what that allocates per line.
+ * {@link #parseHandWritten} streams the same corpus through {@link FastVMParser} for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParserBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    private int lines;
+
+    private String program;
+
+    @Setup
+    public void setup() {
+        program = Corpus.text("Corpus", lines);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException, Lexer.ParseException {
+        new VMParser("Corpus").parse(new StringReader(program), blackhole::consume);
+    }
+
+    @Benchmark
+    public void parseHandWritten(Blackhole blackhole) throws IOException, Lexer.ParseException {
+        new FastVMParser("Corpus").parse(new StringReader(program), blackhole::consume);
+    }
+}
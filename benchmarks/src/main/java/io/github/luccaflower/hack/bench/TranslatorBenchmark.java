@@ -0,0 +1,72 @@
+package io.github.luccaflower.hack.bench;
+
+import io.github.luccaflower.hack.Translator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the {@link Translator} end to end, from files on disk to the assembly it writes, on a corpus in one file and on
+ * the same corpus split into a directory of {@value Corpus#LINES_PER_FILE}-line files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TranslatorBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    private int lines;
+
+    /**
+     * Translator flags, space separated.
+     */
+    @Param({""})
+    private String flags;
+
+    private Path root;
+    private String[] single;
+    private String[] directory;
+    private Path directoryOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("hackvm-bench");
+        var file = Corpus.file(root, lines);
+        var units = Corpus.directory(root.resolve("CorpusDirectory" + lines), lines);
+        single = arguments(file);
+        directory = arguments(units);
+        directoryOutput = Path.of(units.getFileName() + ".asm");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directoryOutput);
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (var path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void singleFile() throws IOException {
+        new Translator(Translator.Options.parse(single)).run();
+    }
+
+    @Benchmark
+    public void directory() throws IOException {
+        new Translator(Translator.Options.parse(directory)).run();
+    }
+
+    private String[] arguments(Path source) {
+        return Stream.concat(Stream.of(flags.split(" ")).filter(f -> !f.isBlank()), Stream.of(source.toString()))
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.luccaflower.hack;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes appended text as ASCII into a single reusable buffer and drains it to a channel whenever it fills up.
+ * Hack assembly is pure ASCII, so every char maps to exactly one byte without going through a charset encoder.
+ */
+public class AsciiChannelWriter implements Appendable, Flushable, Closeable {
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public AsciiChannelWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    public AsciiChannelWriter(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    public AsciiChannelWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    @Override
+    public AsciiChannelWriter append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public AsciiChannelWriter append(CharSequence csq, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public AsciiChannelWriter append(char c) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        return this;
+    }
+
+    /**
+     * Writes already encoded bytes straight to the channel, after anything still buffered.
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        drain();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
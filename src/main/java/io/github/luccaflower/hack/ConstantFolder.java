@@ -0,0 +1,124 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.PushConstant;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Folds arithmetic, logic and comparisons on constants into a single {@link PushConstant}, and drops operations that
+ * cannot change their operand, such as adding 0 or negating twice. Values wrap around to 16 bits exactly as they do on
+ * the Hack CPU, and comparisons are decided by the sign of the 16-bit difference, as the generated code decides them.
+ */
+public class ConstantFolder implements Consumer<VMInstruction> {
+    private final Consumer<? super VMInstruction> sink;
+    /**
+     * Instructions held back because the next one may still fold into them: up to two constants, or a single
+     * negation that a second one would cancel.
+     */
+    private final List<VMInstruction> pending = new ArrayList<>();
+    private int folded = 0;
+
+    public ConstantFolder(Consumer<? super VMInstruction> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Folds a whole program at once.
+     */
+    public static Queue<VMInstruction> fold(Queue<VMInstruction> instructions) {
+        var result = new ArrayDeque<VMInstruction>();
+        var folder = new ConstantFolder(result::add);
+        instructions.forEach(folder);
+        folder.flush();
+        return result;
+    }
+
+    @Override
+    public void accept(VMInstruction instruction) {
+        switch (instruction) {
+            case PushConstant c -> {
+                if (!pending.isEmpty() && !(last() instanceof PushConstant)) {
+                    flush();
+                }
+                pending.add(c);
+                if (pending.size() > 2) {
+                    sink.accept(pending.removeFirst());
+                }
+            }
+            case VMInstruction.Negative n -> unary(n, v -> -v);
+            case VMInstruction.Not n -> unary(n, v -> ~v);
+            case VMInstruction.Add a -> binary(a, Integer::sum, 0);
+            case VMInstruction.Subtract s -> binary(s, (x, y) -> x - y, 0);
+            case VMInstruction.And a -> binary(a, (x, y) -> x & y, -1);
+            case VMInstruction.Or o -> binary(o, (x, y) -> x | y, 0);
+            case VMInstruction.Equal e -> binary(e, (x, y) -> (short) (x - y) == 0 ? -1 : 0, null);
+            case VMInstruction.GreaterThan g -> binary(g, (x, y) -> (short) (x - y) > 0 ? -1 : 0, null);
+            case VMInstruction.LessThan l -> binary(l, (x, y) -> (short) (x - y) < 0 ? -1 : 0, null);
+            case VMInstruction.Null n -> {
+            }
+            default -> {
+                flush();
+                sink.accept(instruction);
+            }
+        }
+    }
+
+    /**
+     * Passes on everything held back. Call this once the program is complete.
+     */
+    public void flush() {
+        pending.forEach(sink);
+        pending.clear();
+    }
+
+    /**
+     * The number of instructions removed so far.
+     */
+    public int folded() {
+        return folded;
+    }
+
+    private void unary(VMInstruction operation, IntUnaryOperator fold) {
+        if (last() instanceof PushConstant(var val)) {
+            replaceLast(1, fold.applyAsInt(val));
+        } else if (operation.equals(last())) {
+            pending.removeLast();
+            folded += 2;
+        } else {
+            flush();
+            pending.add(operation);
+        }
+    }
+
+    /**
+     * Folds the last two constants, or drops the operation when its right operand is {@code identity}.
+     */
+    private void binary(VMInstruction operation, IntBinaryOperator fold, Integer identity) {
+        if (pending.size() == 2 && pending.getFirst() instanceof PushConstant(var x)
+                && pending.getLast() instanceof PushConstant(var y)) {
+            pending.removeLast();
+            replaceLast(2, fold.applyAsInt(x, y));
+        } else if (identity != null && last() instanceof PushConstant(var y) && y == identity) {
+            pending.removeLast();
+            folded += 2;
+        } else {
+            flush();
+            sink.accept(operation);
+        }
+    }
+
+    private void replaceLast(int removed, int val) {
+        pending.set(pending.size() - 1, new PushConstant((short) val));
+        folded += removed;
+    }
+
+    private VMInstruction last() {
+        return pending.isEmpty() ? null : pending.getLast();
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.luccaflower.hack;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Finds the functions of a whole program that cannot be reached from its entry point through the calls in the code,
+ * and filters them out of the instruction stream. VM code has no indirect calls, so the call graph is exact. Code
+ * outside any function counts as reachable, as do the functions it calls.
+ */
+public class DeadFunctions {
+    private final SortedSet<String> removed = new TreeSet<>();
+    private final int functions;
+    private final AtomicInteger words = new AtomicInteger();
+
+    /**
+     * Analyses the parsed translation units of a program that starts by calling {@code entry}. If no unit defines
+     * {@code entry}, nothing is removed.
+     */
+    public DeadFunctions(Collection<? extends Collection<VMInstruction>> units, String entry) {
+        var calls = new HashMap<String, Set<String>>();
+        var roots = new HashSet<String>();
+        roots.add(entry);
+        for (var unit : units) {
+            Set<String> callees = roots;
+            for (var instruction : unit) {
+                if (instruction instanceof VMInstruction.DefineFunction function) {
+                    callees = calls.computeIfAbsent(function.name(), k -> new HashSet<>());
+                } else if (instruction instanceof VMInstruction.CallFunction call) {
+                    callees.add(call.name());
+                }
+            }
+        }
+        functions = calls.size();
+        if (calls.containsKey(entry)) {
+            removed.addAll(calls.keySet());
+            removed.removeAll(reachable(calls, roots));
+        }
+    }
+
+    private static Set<String> reachable(Map<String, Set<String>> calls, Set<String> roots) {
+        var reached = new HashSet<>(roots);
+        var queue = new ArrayDeque<>(roots);
+        while (!queue.isEmpty()) {
+            for (var callee : calls.getOrDefault(queue.poll(), Set.of())) {
+                if (reached.add(callee)) {
+                    queue.add(callee);
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Returns a sink that passes every instruction on to {@code sink}, except those in removed functions.
+     */
+    public Consumer<VMInstruction> filter(Consumer<? super VMInstruction> sink) {
+        return new Consumer<>() {
+            private boolean dropping = false;
+
+            @Override
+            public void accept(VMInstruction instruction) {
+                if (instruction instanceof VMInstruction.DefineFunction function) {
+                    dropping = removed.contains(function.name());
+                }
+                if (dropping) {
+                    words.addAndGet(VMInstruction.words(instruction));
+                } else {
+                    sink.accept(instruction);
+                }
+            }
+        };
+    }
+
+    /**
+     * The names of the unreachable functions, in alphabetical order.
+     */
+    public SortedSet<String> removed() {
+        return removed;
+    }
+
+    /**
+     * The number of functions the program defines, including removed ones.
+     */
+    public int functions() {
+        return functions;
+    }
+
+    /**
+     * The ROM words of the instructions filtered out so far, before any optimization.
+     */
+    public int words() {
+        return words.get();
+    }
+}
@@ -0,0 +1,419 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * A hand-written parser that accepts exactly what {@link VMParser} accepts and produces the same instructions, in a
+ * single pass over each line. Input is read in blocks into a reused {@code char[]}, commands are dispatched on their
+ * first character and compared in place, and numbers are accumulated without boxing, so the only allocations per line
+ * are the instruction itself and the names that labels, functions and calls carry. Each parse keeps the unit name,
+ * counters and label scope in a {@link Context} of its own, so one instance can parse many units at once from
+ * different threads.
+ */
+public class FastVMParser implements InstructionParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final String name;
+
+    /**
+     * A parser shared between units, which are named on each call.
+     */
+    public FastVMParser() {
+        this(null);
+    }
+
+    /**
+     * A parser whose methods without a name parameter parse the unit {@code name}.
+     */
+    public FastVMParser(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Result<Queue<VMInstruction>> tryParse(String name, CharSequence in, int offset) {
+        var chars = in.toString().toCharArray();
+        var context = new Context(name);
+        var instructions = new ArrayDeque<VMInstruction>();
+        var start = offset;
+        while (true) {
+            while (start < chars.length && isSpace(chars[start])) {
+                start++;
+            }
+            if (start == chars.length) {
+                return new Parsed<>(instructions, start);
+            }
+            var lineEnd = start;
+            while (lineEnd < chars.length && chars[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            var instruction = context.instruction(chars, start, lineEnd);
+            if (instruction == null) {
+                return new Failure<>(context.reason, in, context.failedAt);
+            }
+            instructions.add(instruction);
+            start = Math.min(lineEnd + 1, chars.length);
+        }
+    }
+
+    @Override
+    public void parse(String name, Reader in, Consumer<? super VMInstruction> sink, IntConsumer lines)
+            throws IOException, ParseException {
+        var context = new Context(name);
+        var buffer = new char[BUFFER_SIZE];
+        var filled = 0;
+        var start = 0;
+        var scan = 0;
+        var lineNumber = 0;
+        var afterReturn = false;
+        var eof = false;
+        while (true) {
+            if (scan == filled) {
+                if (eof) {
+                    if (start < filled) {
+                        accept(context, buffer, start, filled, ++lineNumber, sink, lines);
+                    }
+                    return;
+                }
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    scan -= start;
+                    start = 0;
+                }
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                var read = in.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+                continue;
+            }
+            var c = buffer[scan];
+            if (afterReturn) {
+                afterReturn = false;
+                if (c == '\n') {
+                    start = ++scan;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                accept(context, buffer, start, scan, ++lineNumber, sink, lines);
+                afterReturn = c == '\r';
+                start = ++scan;
+            } else {
+                scan++;
+            }
+        }
+    }
+
+    /**
+     * Parses one line of the streamed input, which ends before a line terminator.
+     */
+    private static void accept(Context context, char[] buffer, int start, int end, int lineNumber,
+                               Consumer<? super VMInstruction> sink, IntConsumer lines) throws ParseException {
+        var first = start;
+        while (first < end && Character.isWhitespace(buffer[first])) {
+            first++;
+        }
+        if (first == end) {
+            return;
+        }
+        first = start;
+        while (first < end && (buffer[first] == ' ' || buffer[first] == '\t')) {
+            first++;
+        }
+        var instruction = context.instruction(buffer, first, end);
+        if (instruction == null) {
+            var failure = new Failure<>(context.reason, CharBuffer.wrap(buffer, start, end - start).slice(),
+                    context.failedAt - start);
+            throw new ParseException("Line %d: %s".formatted(lineNumber, failure.message()));
+        }
+        if (!(instruction instanceof VMInstruction.Null)) {
+            lines.accept(lineNumber);
+            sink.accept(instruction);
+        }
+    }
+
+    private static boolean isLower(char c) {
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isNameCharacter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_'
+                || c == '-';
+    }
+
+    /**
+     * The characters that {@code \s} matches.
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * The state of one parse: the unit, the counters and label scope so far, and the line being scanned. A mismatch is
+     * not thrown: the method that finds it records why and where in {@link #reason} and {@link #failedAt} and returns
+     * {@code null}, {@code -1} or {@code false}, which its callers pass up.
+     */
+    private static final class Context {
+        private final String file;
+        private final Map<String, Integer> returnLabels = new HashMap<>();
+        private int eqCount = 0;
+        private int ltCount = 0;
+        private int gtCount = 0;
+        /**
+         * What labels are prefixed with: the file and function they are defined in.
+         */
+        private String scope = "";
+        private char[] line;
+        private int position;
+        private int end;
+        private String reason;
+        private int failedAt;
+
+        private Context(String file) {
+            this.file = file;
+        }
+
+        /**
+         * Parses the instruction on the line from {@code start} up to {@code end}, which excludes the newline, or
+         * returns {@code null} if the line does not hold one.
+         */
+        private VMInstruction instruction(char[] line, int start, int end) {
+            this.line = line;
+            this.position = start;
+            this.end = end;
+            if (comment()) {
+                return VMInstruction.Stateless.NULL;
+            }
+            while (position < end && (isLower(line[position]) || line[position] == '-')) {
+                position++;
+            }
+            var instruction = switch (start < end ? line[start] : '\0') {
+                case 'p' -> is(start, "push") ? push() : is(start, "pop") ? pop() : unknown(start);
+                case 'a' -> is(start, "add") ? VMInstruction.Stateless.ADD
+                        : is(start, "and") ? VMInstruction.Stateless.AND : unknown(start);
+                case 's' -> is(start, "sub") ? VMInstruction.Stateless.SUBTRACT : unknown(start);
+                case 'n' -> is(start, "neg") ? VMInstruction.Stateless.NEGATIVE
+                        : is(start, "not") ? VMInstruction.Stateless.NOT : unknown(start);
+                case 'o' -> is(start, "or") ? VMInstruction.Stateless.OR : unknown(start);
+                case 'e' -> is(start, "eq") ? new VMInstruction.Equal(file, eqCount++) : unknown(start);
+                case 'l' -> is(start, "lt") ? new VMInstruction.LessThan(file, ltCount++)
+                        : is(start, "label") ? label(VMInstruction.Label::new) : unknown(start);
+                case 'g' -> is(start, "gt") ? new VMInstruction.GreaterThan(file, gtCount++)
+                        : is(start, "goto") ? label(VMInstruction.GoTo::new) : unknown(start);
+                case 'i' -> is(start, "if-goto") ? label(VMInstruction.IfGoTo::new) : unknown(start);
+                case 'f' -> is(start, "function") ? function() : unknown(start);
+                case 'c' -> is(start, "call") ? call() : unknown(start);
+                case 'r' -> is(start, "return") ? VMInstruction.Stateless.RETURN : unknown(start);
+                default -> unknown(start);
+            };
+            return instruction != null && lineEnd() ? instruction : null;
+        }
+
+        private VMInstruction push() {
+            if (!space()) {
+                return null;
+            }
+            var start = position;
+            while (position < end && isLower(line[position])) {
+                position++;
+            }
+            var segment = switch (start < end ? line[start] : '\0') {
+                case 'c' -> is(start, "constant") ? 0 : -1;
+                case 'l' -> is(start, "local") ? 1 : -1;
+                case 'a' -> is(start, "argument") ? 2 : -1;
+                case 't' -> is(start, "this") ? 3 : is(start, "that") ? 4 : is(start, "temp") ? 5 : -1;
+                case 's' -> is(start, "static") ? 6 : -1;
+                case 'p' -> is(start, "pointer") ? 7 : -1;
+                default -> -1;
+            };
+            if (segment < 0) {
+                return fail("Unknown segment", start);
+            }
+            var val = space() ? number() : -1;
+            if (val < 0) {
+                return null;
+            }
+            return switch (segment) {
+                case 0 -> new VMInstruction.PushConstant((short) val);
+                case 1 -> new VMInstruction.PushSegment(VMInstruction.Segment.LCL, (short) val);
+                case 2 -> new VMInstruction.PushSegment(VMInstruction.Segment.ARG, (short) val);
+                case 3 -> new VMInstruction.PushSegment(VMInstruction.Segment.THIS, (short) val);
+                case 4 -> new VMInstruction.PushSegment(VMInstruction.Segment.THAT, (short) val);
+                case 5 -> new VMInstruction.PushTemp((short) val);
+                case 6 -> new VMInstruction.PushStatic(file, (short) val);
+                default -> new VMInstruction.PushPointer((short) val);
+            };
+        }
+
+        private VMInstruction pop() {
+            if (!space()) {
+                return null;
+            }
+            var start = position;
+            while (position < end && isLower(line[position])) {
+                position++;
+            }
+            var segment = switch (start < end ? line[start] : '\0') {
+                case 'l' -> is(start, "local") ? 1 : -1;
+                case 'a' -> is(start, "argument") ? 2 : -1;
+                case 't' -> is(start, "this") ? 3 : is(start, "that") ? 4 : is(start, "temp") ? 5 : -1;
+                case 's' -> is(start, "static") ? 6 : -1;
+                case 'p' -> is(start, "pointer") ? 7 : -1;
+                default -> -1;
+            };
+            if (segment < 0) {
+                return fail("Unknown segment", start);
+            }
+            var val = space() ? number() : -1;
+            if (val < 0) {
+                return null;
+            }
+            return switch (segment) {
+                case 1 -> new VMInstruction.PopSegment(VMInstruction.Segment.LCL, (short) val);
+                case 2 -> new VMInstruction.PopSegment(VMInstruction.Segment.ARG, (short) val);
+                case 3 -> new VMInstruction.PopSegment(VMInstruction.Segment.THIS, (short) val);
+                case 4 -> new VMInstruction.PopSegment(VMInstruction.Segment.THAT, (short) val);
+                case 5 -> new VMInstruction.PopTemp((short) val);
+                case 6 -> new VMInstruction.PopStatic(file, (short) val);
+                default -> new VMInstruction.PopPointer((short) val);
+            };
+        }
+
+        private VMInstruction function() {
+            var function = space() ? name() : null;
+            var locals = function != null && space() ? number() : -1;
+            if (locals < 0) {
+                return null;
+            }
+            scope = "%s.%s$".formatted(file, function);
+            return new VMInstruction.DefineFunction(function, locals);
+        }
+
+        private VMInstruction call() {
+            var callee = space() ? name() : null;
+            var args = callee != null && space() ? number() : -1;
+            if (args < 0) {
+                return null;
+            }
+            var count = returnLabels.merge(callee, 0, (n, c) -> c + 1);
+            return new VMInstruction.CallFunction(callee, args, "%s$ret.%s.%d".formatted(callee, file, count));
+        }
+
+        private VMInstruction label(Function<String, VMInstruction> instruction) {
+            var label = space() ? name() : null;
+            return label == null ? null : instruction.apply(scope.concat(label));
+        }
+
+        /**
+         * Reads a name made of the characters of {@link VMParser#LABEL_PATTERN}, or returns {@code null}.
+         */
+        private String name() {
+            var start = position;
+            while (position < end && isNameCharacter(line[position])) {
+                position++;
+            }
+            if (position == start) {
+                fail("Expected a name", start);
+                return null;
+            }
+            return new String(line, start, position - start);
+        }
+
+        /**
+         * Reads up to five decimal digits of a number no greater than {@link Short#MAX_VALUE}, or returns -1.
+         */
+        private int number() {
+            var start = position;
+            var value = 0;
+            while (position < end && line[position] >= '0' && line[position] <= '9') {
+                if (position - start < 5) {
+                    value = value * 10 + line[position] - '0';
+                }
+                position++;
+            }
+            if (position == start) {
+                fail("Expected a number", start);
+                return -1;
+            }
+            if (position - start > 5 || value > Short.MAX_VALUE) {
+                fail("Number out of range", start);
+                return -1;
+            }
+            return value;
+        }
+
+        private boolean space() {
+            var start = position;
+            while (position < end && (line[position] == ' ' || line[position] == '\t')) {
+                position++;
+            }
+            if (position == start) {
+                fail("Expected a space", start);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Skips trailing blanks and a comment, and fails if anything else is left on the line.
+         */
+        private boolean lineEnd() {
+            while (position < end && (line[position] == ' ' || line[position] == '\t' || line[position] == '\r')) {
+                position++;
+            }
+            if (position < end && !comment()) {
+                fail("Expected end of line", position);
+                return false;
+            }
+            return true;
+        }
+
+        private VMInstruction unknown(int start) {
+            return fail("Unknown command", start);
+        }
+
+        private VMInstruction fail(String reason, int offset) {
+            this.reason = reason;
+            this.failedAt = offset;
+            return null;
+        }
+
+        private boolean comment() {
+            return end - position >= 2 && line[position] == '/' && line[position + 1] == '/';
+        }
+
+        /**
+         * Whether the word from {@code start} up to the current position is {@code keyword}.
+         */
+        private boolean is(int start, String keyword) {
+            if (position - start != keyword.length()) {
+                return false;
+            }
+            for (int i = 0; i < keyword.length(); i++) {
+                if (line[start + i] != keyword.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles Hack code into machine words, either as assembly text appended to it or as words, constants, symbols and
+ * labels put in directly by {@link VMInstruction#assemble}, which skips generating and parsing text. Label references
+ * are patched in a second pass once every label is known, and the remaining symbols become variables allocated from
+ * address 16 in order of first use, as in the standard assembler.
+ */
+public class HackAssembler implements Appendable {
+    /**
+     * The number of words the Hack ROM holds.
+     */
+    public static final int ROM_SIZE = 1 << 15;
+    private static final int VARIABLE_BASE = 16;
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+    private static final Map<String, Integer> COMPUTATIONS = new HashMap<>();
+    private static final Map<String, Integer> JUMPS = Map.of("JGT", 1, "JEQ", 2, "JGE", 3, "JLT", 4, "JNE", 5,
+            "JLE", 6, "JMP", 7);
+
+    static {
+        PREDEFINED.putAll(Map.of("SP", 0, "LCL", 1, "ARG", 2, "THIS", 3, "THAT", 4, "SCREEN", 0x4000, "KBD", 0x6000));
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        String[][] table = {
+                {"0", "101010"}, {"1", "111111"}, {"-1", "111010"}, {"D", "001100"}, {"A", "110000"},
+                {"!D", "001101"}, {"!A", "110001"}, {"-D", "001111"}, {"-A", "110011"}, {"D+1", "011111"},
+                {"A+1", "110111"}, {"D-1", "001110"}, {"A-1", "110010"}, {"D+A", "000010"}, {"D-A", "010011"},
+                {"A-D", "000111"}, {"D&A", "000000"}, {"D|A", "010101"}};
+        for (var entry : table) {
+            var bits = Integer.parseInt(entry[1], 2) << 6;
+            COMPUTATIONS.put(entry[0], bits);
+            if (entry[0].indexOf('A') >= 0) {
+                COMPUTATIONS.put(entry[0].replace('A', 'M'), bits | 1 << 12);
+            }
+        }
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final List<Fixup> fixups = new ArrayList<>();
+    private ShortBuffer words = ShortBuffer.allocate(1 << 12);
+
+    private record Fixup(int address, String symbol) {
+    }
+
+    @Override
+    public HackAssembler append(CharSequence csq) {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public HackAssembler append(CharSequence csq, int start, int end) {
+        for (int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public HackAssembler append(char c) {
+        if (c == '\n') {
+            assemble(line);
+            line.setLength(0);
+        } else if (c != '\r') {
+            line.append(c);
+        }
+        return this;
+    }
+
+    private void assemble(CharSequence text) {
+        var end = text.length();
+        for (int i = 0; i + 1 < end; i++) {
+            if (text.charAt(i) == '/' && text.charAt(i + 1) == '/') {
+                end = i;
+                break;
+            }
+        }
+        var instruction = text.subSequence(0, end).toString().strip();
+        if (instruction.isEmpty()) {
+            return;
+        }
+        if (instruction.startsWith("(")) {
+            label(instruction.substring(1, instruction.length() - 1));
+        } else if (instruction.startsWith("@")) {
+            var value = instruction.substring(1);
+            if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+                constant(Integer.parseInt(value));
+            } else {
+                symbol(value);
+            }
+        } else {
+            put(compute(instruction));
+        }
+    }
+
+    /**
+     * Assembles {@code asm}, which may only refer to predefined symbols, into words for {@link #code}. Meant for the
+     * fixed parts of code templates, assembled once and copied in for every use.
+     */
+    public static short[] fragment(String asm) {
+        var assembler = new HackAssembler().append(asm);
+        if (!assembler.labels.isEmpty()) {
+            throw new IllegalArgumentException("Fragment declares labels: " + asm);
+        }
+        for (var fixup : assembler.fixups) {
+            var address = PREDEFINED.get(fixup.symbol());
+            if (address == null) {
+                throw new IllegalArgumentException("Fragment refers to " + fixup.symbol() + ": " + asm);
+            }
+            assembler.words.put(fixup.address(), (short) (int) address);
+        }
+        var words = new short[assembler.words.position()];
+        assembler.words.get(0, words);
+        return words;
+    }
+
+    /**
+     * Appends words made by {@link #fragment}. Like the methods below, this must not be called in the middle of an
+     * appended line of text.
+     */
+    public HackAssembler code(short[] fragment) {
+        for (var word : fragment) {
+            put(word);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the A-instruction {@code @value}.
+     */
+    public HackAssembler constant(int value) {
+        if (value < 0 || value >= ROM_SIZE) {
+            throw new IllegalArgumentException("Constant out of range: " + value);
+        }
+        put(value);
+        return this;
+    }
+
+    /**
+     * Appends the A-instruction {@code @symbol}, resolved when the program is assembled.
+     */
+    public HackAssembler symbol(String symbol) {
+        fixups.add(new Fixup(words.position(), symbol));
+        put(0);
+        return this;
+    }
+
+    /**
+     * Declares {@code label} at the next word.
+     */
+    public HackAssembler label(String label) {
+        label(label, words.position());
+        return this;
+    }
+
+    /**
+     * Appends everything put into {@code fragment}, which was assembled on its own, as if it had been put in here.
+     * Lets translation units be assembled in parallel and then concatenated.
+     */
+    public HackAssembler include(HackAssembler fragment) {
+        if (!fragment.line.isEmpty()) {
+            fragment.append('\n');
+        }
+        var offset = words.position();
+        fragment.labels.forEach((label, address) -> label(label, offset + address));
+        for (var fixup : fragment.fixups) {
+            fixups.add(new Fixup(offset + fixup.address(), fixup.symbol()));
+        }
+        var other = fragment.words.duplicate().flip();
+        while (words.remaining() < other.remaining()) {
+            grow();
+        }
+        words.put(other);
+        return this;
+    }
+
+    private void label(String label, int address) {
+        if (labels.putIfAbsent(label, address) != null) {
+            throw new IllegalArgumentException("Duplicate label " + label);
+        }
+    }
+
+    private static int compute(String instruction) {
+        var equals = instruction.indexOf('=');
+        var semicolon = instruction.indexOf(';');
+        var dest = equals < 0 ? "" : instruction.substring(0, equals);
+        var comp = instruction.substring(equals + 1, semicolon < 0 ? instruction.length() : semicolon);
+        var jump = semicolon < 0 ? 0 : JUMPS.getOrDefault(instruction.substring(semicolon + 1), -1);
+        var bits = COMPUTATIONS.get(comp);
+        if (bits == null && comp.length() == 3 && "+&|".indexOf(comp.charAt(1)) >= 0) {
+            bits = COMPUTATIONS.get("" + comp.charAt(2) + comp.charAt(1) + comp.charAt(0));
+        }
+        if (bits == null || jump < 0) {
+            throw new IllegalArgumentException("Unknown instruction " + instruction);
+        }
+        var destination = (dest.indexOf('A') >= 0 ? 4 : 0) | (dest.indexOf('D') >= 0 ? 2 : 0)
+                | (dest.indexOf('M') >= 0 ? 1 : 0);
+        return 0xe000 | bits | destination << 3 | jump;
+    }
+
+    private void put(int word) {
+        if (!words.hasRemaining()) {
+            grow();
+        }
+        words.put((short) word);
+    }
+
+    private void grow() {
+        var bigger = ShortBuffer.allocate(words.capacity() * 2);
+        words.flip();
+        words = bigger.put(words);
+    }
+
+    /**
+     * Resolves every symbol and returns the program, positioned at its first word. Fails if the program does not fit
+     * in the ROM.
+     */
+    public ShortBuffer assemble() {
+        if (!line.isEmpty()) {
+            append('\n');
+        }
+        if (words.position() > ROM_SIZE) {
+            throw new IllegalStateException("Program has %d words, more than the %d the ROM holds"
+                    .formatted(words.position(), ROM_SIZE));
+        }
+        var variables = new HashMap<String, Integer>();
+        for (var fixup : fixups) {
+            var address = labels.get(fixup.symbol());
+            if (address == null) {
+                address = PREDEFINED.get(fixup.symbol());
+            }
+            if (address == null) {
+                address = variables.computeIfAbsent(fixup.symbol(), s -> VARIABLE_BASE + variables.size());
+            }
+            words.put(fixup.address(), (short) (int) address);
+        }
+        fixups.clear();
+        return words.duplicate().flip();
+    }
+
+    /**
+     * Writes {@code program} in the .hack text format, one word per line as 16 binary digits.
+     */
+    public static void writeText(ShortBuffer program, Appendable out) throws IOException {
+        var digits = new char[17];
+        digits[16] = '\n';
+        var text = CharBuffer.wrap(digits);
+        for (int i = program.position(); i < program.limit(); i++) {
+            var word = program.get(i);
+            for (int bit = 0; bit < 16; bit++) {
+                digits[bit] = (word & 1 << 15 - bit) != 0 ? '1' : '0';
+            }
+            out.append(text);
+        }
+    }
+
+    /**
+     * Encodes {@code program} in the .hack text format as ASCII, like {@link #writeText}, in one buffer ready to be
+     * written out.
+     */
+    public static ByteBuffer text(ShortBuffer program) {
+        var bytes = ByteBuffer.allocate(program.remaining() * 17);
+        for (int i = program.position(); i < program.limit(); i++) {
+            var word = program.get(i);
+            for (int bit = 15; bit >= 0; bit--) {
+                bytes.put((byte) ('0' + (word >> bit & 1)));
+            }
+            bytes.put((byte) '\n');
+        }
+        return bytes.flip();
+    }
+
+    /**
+     * Encodes {@code program} as raw big-endian words.
+     */
+    public static ByteBuffer binary(ShortBuffer program) {
+        var bytes = ByteBuffer.allocate(program.remaining() * Short.BYTES);
+        bytes.asShortBuffer().put(program.duplicate());
+        return bytes;
+    }
+}
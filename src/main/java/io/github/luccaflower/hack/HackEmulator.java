@@ -0,0 +1,267 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Runs Hack machine code headlessly. ROM and RAM are plain {@code short[]} arrays and the fetch-execute loop keeps the
+ * registers in locals, so regression programs run to completion in milliseconds. Execution stops when the cycle budget
+ * is spent, when the program counter leaves the ROM, or when the program parks itself in the {@code (L) @L 0;JMP}
+ * loop that ends Hack programs.
+ */
+public class HackEmulator {
+    public static final int SCREEN = 0x4000;
+    public static final int KEYBOARD = 0x6000;
+    public static final int SCREEN_WIDTH = 512;
+    public static final int SCREEN_HEIGHT = 256;
+    private static final int RAM_SIZE = 1 << 15;
+    private final int[] rom;
+    private final short[] ram = new short[RAM_SIZE];
+    private int pc = 0;
+    private int a = 0;
+    private int d = 0;
+    private long cycles = 0;
+    private boolean halted = false;
+
+    public HackEmulator(short[] rom) {
+        this.rom = decode(rom);
+    }
+
+    public HackEmulator(ShortBuffer program) {
+        this(toArray(program));
+    }
+
+    private static short[] toArray(ShortBuffer program) {
+        var rom = new short[program.remaining()];
+        program.duplicate().get(rom);
+        return rom;
+    }
+
+    /**
+     * Loads a program from a .asm, .hack or raw big-endian binary file, depending on its extension.
+     */
+    public static HackEmulator load(Path file) throws IOException {
+        var name = file.getFileName().toString();
+        if (name.endsWith(".asm")) {
+            var assembler = new HackAssembler();
+            assembler.append(Files.readString(file, StandardCharsets.US_ASCII));
+            return new HackEmulator(assembler.assemble());
+        }
+        if (name.endsWith(".hack")) {
+            var lines = Files.readAllLines(file, StandardCharsets.US_ASCII).stream()
+                    .map(String::strip)
+                    .filter(l -> !l.isEmpty())
+                    .toList();
+            var rom = new short[lines.size()];
+            for (int i = 0; i < rom.length; i++) {
+                rom[i] = (short) Integer.parseInt(lines.get(i), 2);
+            }
+            return new HackEmulator(rom);
+        }
+        return new HackEmulator(ByteBuffer.wrap(Files.readAllBytes(file)).asShortBuffer());
+    }
+
+    /**
+     * Executes at most {@code budget} instructions and returns how many were executed.
+     */
+    public long run(long budget) {
+        return run(budget, null);
+    }
+
+    /**
+     * Like {@link #run(long)}, but also adds one to {@code counts[address]} for every instruction executed at
+     * {@code address}, unless {@code counts} is null. {@code counts} must cover the ROM.
+     */
+    public long run(long budget, long[] counts) {
+        var rom = this.rom;
+        var ram = this.ram;
+        int pc = this.pc;
+        int a = this.a;
+        int d = this.d;
+        long executed = 0;
+        var halted = this.halted;
+        while (executed < budget && !halted) {
+            if (pc >= rom.length) {
+                halted = true;
+                break;
+            }
+            int word = rom[pc];
+            executed++;
+            if (counts != null) {
+                counts[pc]++;
+            }
+            if (word >= 0) {
+                a = word;
+                pc++;
+                continue;
+            }
+            int y = (word & 0x1000) != 0 ? ram[a & 0x7fff] : a;
+            int out = (short) alu(word, d, y);
+            int target = a & 0x7fff;
+            if ((word & 0x08) != 0) {
+                ram[a & 0x7fff] = (short) out;
+            }
+            if ((word & 0x20) != 0) {
+                a = out;
+            }
+            if ((word & 0x10) != 0) {
+                d = out;
+            }
+            int jump = word & 0x07;
+            if ((jump & (out < 0 ? 4 : out == 0 ? 2 : 1)) != 0) {
+                if (jump == 7 && target == pc - 1 && rom[target] == target) {
+                    halted = true;
+                }
+                pc = target;
+            } else {
+                pc++;
+            }
+        }
+        this.halted = halted;
+        this.pc = pc;
+        this.a = a;
+        this.d = d;
+        cycles += executed;
+        return executed;
+    }
+
+    /**
+     * The control bits {@code zx nx zy ny f no} of the computations the Hack assembly language defines, in the order of
+     * the dense codes that {@link #decode} gives them.
+     */
+    private static final int[] COMPUTATIONS = {0b101010, 0b111111, 0b111010, 0b001100, 0b110000, 0b001101, 0b110001,
+            0b001111, 0b110011, 0b011111, 0b110111, 0b001110, 0b110010, 0b000010, 0b010011, 0b000111, 0b000000,
+            0b010101};
+    private static final int OTHER = 0x3f;
+
+    /**
+     * Widens every word to an int and replaces the control bits of each computation by a dense code, so that the
+     * dispatch in {@link #run} compiles to a jump table. The sign bit still marks C-instructions, and computations
+     * without a code keep their original control bits above the instruction.
+     */
+    private static int[] decode(short[] rom) {
+        var codes = new int[1 << 6];
+        Arrays.fill(codes, OTHER);
+        for (int i = 0; i < COMPUTATIONS.length; i++) {
+            codes[COMPUTATIONS[i]] = i;
+        }
+        var code = new int[rom.length];
+        for (int i = 0; i < rom.length; i++) {
+            int word = rom[i];
+            if (word < 0) {
+                var control = (word >> 6) & 0x3f;
+                word = 0x80000000 | control << 16 | word & 0xf03f | codes[control] << 6;
+            }
+            code[i] = word;
+        }
+        return code;
+    }
+
+    private static int alu(int word, int x, int y) {
+        return switch ((word >> 6) & 0x3f) {
+            case 0 -> 0;
+            case 1 -> 1;
+            case 2 -> -1;
+            case 3 -> x;
+            case 4 -> y;
+            case 5 -> ~x;
+            case 6 -> ~y;
+            case 7 -> -x;
+            case 8 -> -y;
+            case 9 -> x + 1;
+            case 10 -> y + 1;
+            case 11 -> x - 1;
+            case 12 -> y - 1;
+            case 13 -> x + y;
+            case 14 -> x - y;
+            case 15 -> y - x;
+            case 16 -> x & y;
+            case 17 -> x | y;
+            default -> compute((word >> 16) & 0x3f, x, y);
+        };
+    }
+
+    /**
+     * Computes the ALU function for arbitrary control bits {@code zx nx zy ny f no}.
+     */
+    private static int compute(int control, int x, int y) {
+        if ((control & 0b100000) != 0) {
+            x = 0;
+        }
+        if ((control & 0b010000) != 0) {
+            x = ~x;
+        }
+        if ((control & 0b001000) != 0) {
+            y = 0;
+        }
+        if ((control & 0b000100) != 0) {
+            y = ~y;
+        }
+        var out = (control & 0b000010) != 0 ? x + y : x & y;
+        return (control & 0b000001) != 0 ? ~out : out;
+    }
+
+    public boolean halted() {
+        return halted;
+    }
+
+    /**
+     * The total number of instructions executed.
+     */
+    public long cycles() {
+        return cycles;
+    }
+
+    /**
+     * The number of words in the ROM.
+     */
+    public int size() {
+        return rom.length;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public short peek(int address) {
+        return ram[address];
+    }
+
+    public void poke(int address, short value) {
+        ram[address] = value;
+    }
+
+    /**
+     * Whether the pixel at column {@code x} and row {@code y} of the 512x256 screen is black.
+     */
+    public boolean pixel(int x, int y) {
+        return (ram[SCREEN + y * (SCREEN_WIDTH / 16) + x / 16] & 1 << (x % 16)) != 0;
+    }
+
+    /**
+     * Holds down the key with the given Hack key code, or releases all keys if it is 0.
+     */
+    public void press(int key) {
+        ram[KEYBOARD] = (short) key;
+    }
+
+    /**
+     * Runs a .asm, .hack or binary program and prints how far it got and the top of its stack.
+     */
+    public static void main(String[] args) throws IOException {
+        var emulator = load(Path.of(args[0]));
+        var budget = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        var start = System.nanoTime();
+        emulator.run(budget);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var sp = emulator.peek(0);
+        System.out.printf("%s after %d cycles (%.0f million per second), SP %d, top of stack %d%n",
+                emulator.halted() ? "Halted" : "Stopped", emulator.cycles(), emulator.cycles() / seconds / 1e6, sp,
+                sp > 256 ? emulator.peek(sp - 1) : 0);
+    }
+}
@@ -0,0 +1,164 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles a program running in a {@link HackEmulator} against the {@link SourceMap} it was translated with. Every
+ * instruction executed is counted by ROM address, which gives exact cycles per function and per VM line, and exact
+ * call counts through the call sites in the map. Every {@code interval} cycles the call stack is sampled by walking
+ * the chain of saved LCL pointers in the VM frames, for flame graphs in the collapsed format that flamegraph.pl and
+ * speedscope read.
+ */
+public class HackProfiler {
+    public static final int DEFAULT_INTERVAL = 1000;
+    private static final int MAX_DEPTH = 256;
+    private static final int STACK_BASE = 256;
+    private final HackEmulator emulator;
+    private final SourceMap map;
+    private final int interval;
+    private final long[] counts;
+    private final Map<String, Long> stacks = new HashMap<>();
+
+    public record Cost(long cycles, long calls) {
+    }
+
+    public HackProfiler(HackEmulator emulator, SourceMap map, int interval) {
+        this.emulator = emulator;
+        this.map = map;
+        this.interval = interval;
+        this.counts = new long[emulator.size()];
+    }
+
+    /**
+     * Executes at most {@code budget} instructions and returns how many were executed.
+     */
+    public long run(long budget) {
+        long executed = 0;
+        while (executed < budget && !emulator.halted()) {
+            var cycles = emulator.run(Math.min(interval, budget - executed), counts);
+            executed += cycles;
+            stacks.merge(stack(), cycles, Long::sum);
+        }
+        return executed;
+    }
+
+    /**
+     * The functions on the call stack from the outermost, separated by semicolons.
+     */
+    private String stack() {
+        var frames = new ArrayList<String>();
+        frames.add(function(emulator.pc()));
+        int lcl = emulator.peek(1);
+        while (frames.size() < MAX_DEPTH && lcl >= STACK_BASE + 5) {
+            var caller = map.at(emulator.peek(lcl - 5) - 1);
+            if (caller == null || caller.function().equals(RomReport.RUNTIME)) {
+                break;
+            }
+            frames.add(caller.function());
+            int saved = emulator.peek(lcl - 4);
+            if (saved >= lcl) {
+                break;
+            }
+            lcl = saved;
+        }
+        Collections.reverse(frames);
+        return String.join(";", frames);
+    }
+
+    private String function(int address) {
+        var location = map.at(address);
+        return location != null ? location.function() : "?";
+    }
+
+    /**
+     * Cycles spent in and calls made to each function.
+     */
+    public Map<String, Cost> functions() {
+        var cycles = new HashMap<String, Long>();
+        for (int address = 0; address < counts.length; address++) {
+            if (counts[address] > 0) {
+                cycles.merge(function(address), counts[address], Long::sum);
+            }
+        }
+        var calls = new HashMap<String, Long>();
+        map.calls().forEach((address, callee) -> {
+            if (address < counts.length) {
+                calls.merge(callee, counts[address], Long::sum);
+            }
+        });
+        var costs = new HashMap<String, Cost>();
+        cycles.forEach((f, n) -> costs.put(f, new Cost(n, calls.getOrDefault(f, 0L))));
+        calls.forEach((f, n) -> costs.putIfAbsent(f, new Cost(0, n)));
+        return costs;
+    }
+
+    /**
+     * Cycles spent on each VM line, keyed {@code file:line}.
+     */
+    public Map<String, Long> lines() {
+        var cycles = new HashMap<String, Long>();
+        for (int address = 0; address < counts.length; address++) {
+            var location = map.at(address);
+            if (counts[address] > 0 && location != null) {
+                cycles.merge(location.file() + ':' + location.line(), counts[address], Long::sum);
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Writes the sampled stacks as {@code outer;inner cycles} lines.
+     */
+    public void writeFolded(Appendable out) throws IOException {
+        var sorted = new ArrayList<>(stacks.entrySet());
+        sorted.sort(Map.Entry.comparingByKey());
+        for (var entry : sorted) {
+            out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue())).append('\n');
+        }
+    }
+
+    private static <K, V> List<Map.Entry<K, V>> top(Map<K, V> map, Comparator<V> order, int n) {
+        return map.entrySet().stream()
+                .sorted(Map.Entry.<K, V>comparingByValue(order).reversed())
+                .limit(n)
+                .toList();
+    }
+
+    /**
+     * Runs a translated program with the source map written next to it, writes the sampled stacks next to it as
+     * {@code .folded}, and prints the functions and lines that took the most cycles.
+     */
+    public static void main(String[] args) throws IOException {
+        var program = Path.of(args[0]);
+        var name = program.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        var budget = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        var interval = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_INTERVAL;
+        var profiler = new HackProfiler(HackEmulator.load(program),
+                SourceMap.read(program.resolveSibling(name + ".map")), interval);
+        var cycles = profiler.run(budget);
+        var folded = program.resolveSibling(name + ".folded");
+        try (var out = Files.newBufferedWriter(folded, StandardCharsets.UTF_8)) {
+            profiler.writeFolded(out);
+        }
+        System.out.printf("%d cycles, stacks written to %s%n%n%12s %6s %10s  %s%n", cycles, folded, "cycles", "%",
+                "calls", "function");
+        for (var entry : top(profiler.functions(), Comparator.comparingLong(Cost::cycles), 20)) {
+            System.out.printf("%12d %5.1f%% %10d  %s%n", entry.getValue().cycles(),
+                    100.0 * entry.getValue().cycles() / cycles, entry.getValue().calls(), entry.getKey());
+        }
+        System.out.printf("%n%12s %6s  %s%n", "cycles", "%", "line");
+        for (var entry : top(profiler.lines(), Comparator.<Long>naturalOrder(), 20)) {
+            System.out.printf("%12d %5.1f%%  %s%n", entry.getValue(), 100.0 * entry.getValue() / cycles,
+                    entry.getKey());
+        }
+    }
+}
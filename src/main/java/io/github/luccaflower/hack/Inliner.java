@@ -0,0 +1,270 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.Segment;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Substitutes the bodies of small leaf functions at their call sites, so they run without building a frame. A leaf
+ * function calls nothing, so no two inlined bodies are ever active at once, and all of them share a handful of static
+ * slots for their arguments and locals, and for the THIS and THAT pointers that a real return would restore. Labels and
+ * comparisons in a body are renamed after the return label of the call site, which is unique in the whole program.
+ */
+public class Inliner {
+    /**
+     * The default limit on the number of VM instructions in a function body that is inlined.
+     */
+    public static final int DEFAULT_BUDGET = 8;
+    private static final String ARGUMENT = "$inline.arg";
+    private static final String LOCAL = "$inline.local";
+    private static final String POINTER = "$inline.pointer";
+    private final Map<String, Body> bodies = new TreeMap<>();
+    private final AtomicInteger sites = new AtomicInteger();
+
+    private record Body(int locals, List<VMInstruction> instructions, SortedSet<Short> pointers) {
+    }
+
+    /**
+     * Finds the leaf functions in the parsed translation units of a program whose bodies have at most {@code budget}
+     * instructions and leave exactly the return value on the stack at every return.
+     */
+    public Inliner(Collection<? extends Collection<VMInstruction>> units, int budget) {
+        var definitions = new HashMap<String, Integer>();
+        for (var unit : units) {
+            String function = null;
+            var locals = 0;
+            var body = new ArrayList<VMInstruction>();
+            for (var instruction : unit) {
+                if (instruction instanceof VMInstruction.DefineFunction(var name, var count)) {
+                    consider(function, locals, body, budget);
+                    definitions.merge(name, 1, Integer::sum);
+                    function = name;
+                    locals = count;
+                    body = new ArrayList<>();
+                } else if (!(instruction instanceof VMInstruction.Null)) {
+                    body.add(instruction);
+                }
+            }
+            consider(function, locals, body, budget);
+        }
+        definitions.forEach((name, count) -> {
+            if (count > 1) {
+                bodies.remove(name);
+            }
+        });
+    }
+
+    private void consider(String function, int locals, List<VMInstruction> body, int budget) {
+        if (function == null || body.size() > budget || !balanced(body)) {
+            return;
+        }
+        var pointers = new TreeSet<Short>();
+        for (var instruction : body) {
+            switch (instruction) {
+                case VMInstruction.CallFunction c -> {
+                    return;
+                }
+                case VMInstruction.PopPointer(var val) -> pointers.add(val);
+                default -> {
+                }
+            }
+        }
+        bodies.put(function, new Body(locals, List.copyOf(body), pointers));
+    }
+
+    /**
+     * Whether every path through {@code body} keeps the stack depth consistent at each label and reaches a return with
+     * only the return value on the stack, which is all an inlined return leaves behind.
+     */
+    private static boolean balanced(List<VMInstruction> body) {
+        var labels = new HashMap<String, Integer>();
+        Integer depth = 0;
+        for (var instruction : body) {
+            if (instruction instanceof VMInstruction.Label(var name)) {
+                var known = labels.get(name);
+                if (depth == null) {
+                    if (known == null) {
+                        return false;
+                    }
+                    depth = known;
+                } else if (known != null && !known.equals(depth)) {
+                    return false;
+                }
+                labels.put(name, depth);
+                continue;
+            }
+            if (depth == null) {
+                return false;
+            }
+            switch (instruction) {
+                case VMInstruction.GoTo(var name) -> {
+                    if (!labels.getOrDefault(name, depth).equals(depth)) {
+                        return false;
+                    }
+                    labels.put(name, depth);
+                    depth = null;
+                }
+                case VMInstruction.IfGoTo(var name) -> {
+                    depth--;
+                    if (depth < 0 || !labels.getOrDefault(name, depth).equals(depth)) {
+                        return false;
+                    }
+                    labels.put(name, depth);
+                }
+                case VMInstruction.Return r -> {
+                    if (depth != 1) {
+                        return false;
+                    }
+                    depth = null;
+                }
+                default -> {
+                    depth += delta(instruction);
+                    if (depth < 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return depth == null;
+    }
+
+    private static int delta(VMInstruction instruction) {
+        return switch (instruction) {
+            case VMInstruction.PushConstant p -> 1;
+            case VMInstruction.PushSegment p -> 1;
+            case VMInstruction.PushTemp p -> 1;
+            case VMInstruction.PushStatic p -> 1;
+            case VMInstruction.PushPointer p -> 1;
+            case VMInstruction.PopSegment p -> -1;
+            case VMInstruction.PopTemp p -> -1;
+            case VMInstruction.PopStatic p -> -1;
+            case VMInstruction.PopPointer p -> -1;
+            case VMInstruction.Add a -> -1;
+            case VMInstruction.Subtract s -> -1;
+            case VMInstruction.And a -> -1;
+            case VMInstruction.Or o -> -1;
+            case VMInstruction.Equal e -> -1;
+            case VMInstruction.GreaterThan g -> -1;
+            case VMInstruction.LessThan l -> -1;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Returns a sink that passes every instruction on to {@code sink}, with calls to inlinable functions replaced by
+     * their bodies.
+     */
+    public Consumer<VMInstruction> rewrite(Consumer<? super VMInstruction> sink) {
+        return instruction -> {
+            if (inline(instruction, sink)) {
+                sites.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Returns {@code unit} with calls to inlinable functions replaced by their bodies, without counting the sites.
+     */
+    public List<VMInstruction> inline(Collection<VMInstruction> unit) {
+        var result = new ArrayList<VMInstruction>();
+        unit.forEach(instruction -> inline(instruction, result::add));
+        return result;
+    }
+
+    private boolean inline(VMInstruction instruction, Consumer<? super VMInstruction> sink) {
+        if (instruction instanceof VMInstruction.CallFunction call && bodies.containsKey(call.name())) {
+            expand(call, bodies.get(call.name()), sink);
+            return true;
+        }
+        sink.accept(instruction);
+        return false;
+    }
+
+    private void expand(VMInstruction.CallFunction call, Body body, Consumer<? super VMInstruction> sink) {
+        var site = call.returnLabel();
+        var end = "$inline.end$" + site;
+        for (int i = call.args() - 1; i >= 0; i--) {
+            sink.accept(new VMInstruction.PopStatic(ARGUMENT, (short) i));
+        }
+        for (int i = 0; i < body.locals(); i++) {
+            sink.accept(new VMInstruction.PushConstant((short) 0));
+            sink.accept(new VMInstruction.PopStatic(LOCAL, (short) i));
+        }
+        for (var pointer : body.pointers()) {
+            sink.accept(new VMInstruction.PushPointer(pointer));
+            sink.accept(new VMInstruction.PopStatic(POINTER, pointer));
+        }
+        var instructions = body.instructions();
+        var jumpsToEnd = false;
+        for (int i = 0; i < instructions.size(); i++) {
+            var instruction = instructions.get(i);
+            if (instruction instanceof VMInstruction.Return) {
+                if (i < instructions.size() - 1) {
+                    sink.accept(new VMInstruction.GoTo(end));
+                    jumpsToEnd = true;
+                }
+            } else {
+                sink.accept(remap(instruction, site));
+            }
+        }
+        if (jumpsToEnd) {
+            sink.accept(new VMInstruction.Label(end));
+        }
+        for (var pointer : body.pointers()) {
+            sink.accept(new VMInstruction.PushStatic(POINTER, pointer));
+            sink.accept(new VMInstruction.PopPointer(pointer));
+        }
+    }
+
+    private static VMInstruction remap(VMInstruction instruction, String site) {
+        return switch (instruction) {
+            case VMInstruction.PushSegment(var segment, var val) when segment == Segment.ARG ->
+                    new VMInstruction.PushStatic(ARGUMENT, val);
+            case VMInstruction.PushSegment(var segment, var val) when segment == Segment.LCL ->
+                    new VMInstruction.PushStatic(LOCAL, val);
+            case VMInstruction.PopSegment(var segment, var val) when segment == Segment.ARG ->
+                    new VMInstruction.PopStatic(ARGUMENT, val);
+            case VMInstruction.PopSegment(var segment, var val) when segment == Segment.LCL ->
+                    new VMInstruction.PopStatic(LOCAL, val);
+            case VMInstruction.Label(var name) -> new VMInstruction.Label(name + '$' + site);
+            case VMInstruction.GoTo(var name) -> new VMInstruction.GoTo(name + '$' + site);
+            case VMInstruction.IfGoTo(var name) -> new VMInstruction.IfGoTo(name + '$' + site);
+            case VMInstruction.Equal(var scope, var count) -> new VMInstruction.Equal(site, count);
+            case VMInstruction.GreaterThan(var scope, var count) -> new VMInstruction.GreaterThan(site, count);
+            case VMInstruction.LessThan(var scope, var count) -> new VMInstruction.LessThan(site, count);
+            default -> instruction;
+        };
+    }
+
+    /**
+     * The names of the functions that are inlined, in alphabetical order.
+     */
+    public SortedSet<String> inlined() {
+        return new TreeSet<>(bodies.keySet());
+    }
+
+    /**
+     * Describes the inlined bodies, so that cached code is regenerated when any of them changes.
+     */
+    public String signature() {
+        var signature = new StringBuilder();
+        bodies.forEach((name, body) -> signature.append(name).append(':').append(body).append('\n'));
+        return signature.toString();
+    }
+
+    /**
+     * The number of call sites expanded so far.
+     */
+    public int sites() {
+        return sites.get();
+    }
+}
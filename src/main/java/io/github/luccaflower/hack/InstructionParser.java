@@ -0,0 +1,75 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Parses the VM code of translation units, whose names scope their statics and comparison labels. Every parse starts
+ * from a fresh state that holds the unit name, so one instance can parse any number of units, from any number of
+ * threads at once. As a {@link Lexer}, it parses a whole program held in memory, keeping comments as
+ * {@link VMInstruction.Null}, for the unit named by {@link #name()}.
+ */
+public interface InstructionParser extends Lexer<Queue<VMInstruction>> {
+    /**
+     * The unit that the methods without a name parameter parse, or {@code null} if there is none and only the methods
+     * that take a name can be used.
+     */
+    String name();
+
+    /**
+     * Parses a whole program held in memory as the unit {@code name}, keeping comments as {@link VMInstruction.Null}.
+     */
+    Result<Queue<VMInstruction>> tryParse(String name, CharSequence in, int offset);
+
+    default Queue<VMInstruction> parse(String name, CharSequence in) throws ParseException {
+        return switch (tryParse(name, in, 0)) {
+            case Parsed<Queue<VMInstruction>> parsed -> parsed.parsed();
+            case Failure<Queue<VMInstruction>> failure -> throw new ParseException(failure.message());
+        };
+    }
+
+    /**
+     * Parses the input one line at a time as the unit {@code name}, handing each instruction to the sink as soon as it
+     * is recognised. Only the current line is held in memory, so the input may be arbitrarily large. Blank and
+     * comment-only lines are dropped. Tells {@code lines} the 1-based line number of each instruction just before
+     * handing it to the sink.
+     */
+    void parse(String name, Reader in, Consumer<? super VMInstruction> sink, IntConsumer lines)
+            throws IOException, ParseException;
+
+    default void parse(String name, Reader in, Consumer<? super VMInstruction> sink)
+            throws IOException, ParseException {
+        parse(name, in, sink, line -> {});
+    }
+
+    @Override
+    default Result<Queue<VMInstruction>> tryParse(CharSequence in, int offset) {
+        return tryParse(unit(), in, offset);
+    }
+
+    /**
+     * Like {@link #parse(String, Reader, Consumer)} for the unit named by {@link #name()}.
+     */
+    default void parse(Reader in, Consumer<? super VMInstruction> sink) throws IOException, ParseException {
+        parse(unit(), in, sink, line -> {});
+    }
+
+    /**
+     * Like {@link #parse(String, Reader, Consumer, IntConsumer)} for the unit named by {@link #name()}.
+     */
+    default void parse(Reader in, Consumer<? super VMInstruction> sink, IntConsumer lines)
+            throws IOException, ParseException {
+        parse(unit(), in, sink, lines);
+    }
+
+    private String unit() {
+        var name = name();
+        if (name == null) {
+            throw new IllegalStateException("This parser is shared between units; pass the unit name to parse");
+        }
+        return name;
+    }
+}
@@ -1,6 +1,10 @@
 package io.github.luccaflower.hack;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Queue;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -9,36 +13,136 @@ import java.util.regex.Pattern;
 @FunctionalInterface
 public interface Lexer<T> {
     static Lexer<Short> number() {
-        return regex("\\d+").map(Short::valueOf);
+        var digits = regex("\\d+");
+        return predicted(digits.first(), (in, offset) -> switch (digits.tryParse(in, offset)) {
+            case Parsed<String> parsed when parsed.parsed().length() <= 5
+                    && Integer.parseInt(parsed.parsed()) <= Short.MAX_VALUE ->
+                    new Parsed<>(Short.valueOf(parsed.parsed()), parsed.offset());
+            case Parsed<String> ignored -> new Failure<>("Number out of range", in, offset);
+            case Failure<String> failure -> failure.retype();
+        });
     }
 
     default T parse(CharSequence in) throws ParseException {
-        return tryParse(in).parsed();
+        return switch (tryParse(in)) {
+            case Parsed<T> parsed -> parsed.parsed();
+            case Failure<T> failure -> throw new ParseException(failure.message());
+        };
+    }
+
+    default Result<T> tryParse(CharSequence in) {
+        return tryParse(in, 0);
     }
 
-    Parsed<T> tryParse(CharSequence in) throws ParseException;
+    /**
+     * Attempts to lex the input starting at {@code offset}. A mismatch is reported as a {@link Failure} rather than
+     * thrown, so combinators can backtrack without paying for exception construction. The input itself is never
+     * copied; results only carry the offset at which the next lexer should continue.
+     */
+    Result<T> tryParse(CharSequence in, int offset);
 
+    /**
+     * The ASCII characters that every match of this lexer starts with, or {@code null} if it can match the empty
+     * string or start with a character that is not known up front. {@link #choice} uses this to skip alternatives
+     * that cannot match. The returned set must not be modified.
+     */
+    default BitSet first() {
+        return null;
+    }
+
+    /**
+     * Matches a regular expression. The characters it can start with are derived from simple patterns.
+     */
     static Lexer<String> regex(Pattern regex) {
-        return in -> {
-            var matcher = regex.matcher(in);
+        return predicted(Patterns.first(regex), (in, offset) -> {
+            var matcher = regex.matcher(in).region(offset, in.length());
             if (matcher.lookingAt()) {
-                var end = matcher.end();
-                var parsed = matcher.group();
-                return new Parsed<>(parsed, in.subSequence(end, in.length()));
+                return new Parsed<>(matcher.group(), matcher.end());
             } else {
-                int length = Math.min(20, in.length());
-                String lines = in.toString().substring(0, length);
-                throw new ParseException("No match for input\n" + lines);
+                return new Failure<>("No match for input", in, offset);
             }
-        };
+        });
     }
 
+    /**
+     * Matches a regular expression, compiled once when the lexer is built.
+     */
     static Lexer<String> regex(String pattern) {
         return regex(Pattern.compile(pattern));
     }
 
+    /**
+     * Matches {@code s} literally, comparing characters without a regular expression.
+     */
     static Lexer<String> string(String s) {
-        return regex(Pattern.compile(Pattern.quote(s)));
+        BitSet first = null;
+        if (!s.isEmpty() && s.charAt(0) < Patterns.ASCII) {
+            first = new BitSet(Patterns.ASCII);
+            first.set(s.charAt(0));
+        }
+        return predicted(first, (in, offset) -> {
+            if (in.length() - offset < s.length()) {
+                return new Failure<>("No match for input", in, offset);
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (in.charAt(offset + i) != s.charAt(i)) {
+                    return new Failure<>("No match for input", in, offset);
+                }
+            }
+            return new Parsed<>(s, offset + s.length());
+        });
+    }
+
+    /**
+     * Tries the alternatives in order like a chain of {@link #or}, but first looks at the next character and only
+     * tries the alternatives that can start with it. Alternatives without {@link #first} characters are always
+     * tried.
+     */
+    @SafeVarargs
+    static <T> Lexer<T> choice(Lexer<T>... alternatives) {
+        var options = new ArrayList<Lexer<T>>(alternatives.length);
+        for (var alternative : alternatives) {
+            options.add(alternative);
+        }
+        return choice(options);
+    }
+
+    /**
+     * Like {@link #choice(Lexer[])}, for alternatives built at runtime.
+     */
+    static <T> Lexer<T> choice(List<? extends Lexer<T>> alternatives) {
+        List<Lexer<T>> options = List.copyOf(alternatives);
+        var candidates = new int[Patterns.ASCII + 1][];
+        for (int c = 0; c <= Patterns.ASCII; c++) {
+            var matching = new int[options.size()];
+            var count = 0;
+            for (int i = 0; i < options.size(); i++) {
+                var first = options.get(i).first();
+                if (first == null || c < Patterns.ASCII && first.get(c)) {
+                    matching[count++] = i;
+                }
+            }
+            candidates[c] = Arrays.copyOf(matching, count);
+        }
+        BitSet first = new BitSet(Patterns.ASCII);
+        for (var option : options) {
+            if (option.first() == null) {
+                first = null;
+                break;
+            }
+            first.or(option.first());
+        }
+        return predicted(first, (in, offset) -> {
+            var next = offset < in.length() ? Math.min(in.charAt(offset), Patterns.ASCII) : Patterns.ASCII;
+            Result<T> result = new Failure<>("No match for input", in, offset);
+            for (var i : candidates[next]) {
+                result = options.get(i).tryParse(in, offset);
+                if (result instanceof Parsed<T>) {
+                    return result;
+                }
+            }
+            return result;
+        });
     }
 
     static Lexer<String> eol() {
@@ -46,57 +150,53 @@ public interface Lexer<T> {
     }
 
     static Lexer<String> eof() {
-        return in -> {
-            if (!in.isEmpty()) {
-                int length = Math.min(20, in.length());
-                String lines = in.toString().substring(0, length);
-                throw new ParseException("expected EOF\n" + lines);
+        return (in, offset) -> {
+            if (offset < in.length()) {
+                return new Failure<>("expected EOF", in, offset);
             } else {
-                return new Parsed<>("", "");
+                return new Parsed<>("", offset);
             }
         };
     }
 
     default <U> Lexer<U> map(Function<? super T, ? extends U> f) {
-        return in -> {
-            var parsed = tryParse(in);
-            return new Parsed<>(f.apply(parsed.parsed()), parsed.rest());
-        };
+        return predicted(first(), (in, offset) -> switch (tryParse(in, offset)) {
+            case Parsed<T> parsed -> new Parsed<>(f.apply(parsed.parsed()), parsed.offset());
+            case Failure<T> failure -> failure.retype();
+        });
     }
 
     default <U> Lexer<Pair<T, U>> andThen(Lexer<U> other) {
-        return in -> {
-            var first = tryParse(in);
-            var second = other.tryParse(first.rest());
-            return new Parsed<>(new Pair<>(first.parsed(), second.parsed()), second.rest());
-        };
+        return predicted(first(), (in, offset) -> switch (tryParse(in, offset)) {
+            case Parsed<T> first -> switch (other.tryParse(in, first.offset())) {
+                case Parsed<U> second -> new Parsed<>(new Pair<>(first.parsed(), second.parsed()), second.offset());
+                case Failure<U> failure -> failure.retype();
+            };
+            case Failure<T> failure -> failure.retype();
+        });
     }
 
     default Lexer<T> or(Lexer<T> other) {
-        return in -> {
-            try {
-                return tryParse(in);
-            } catch (Exception ignored) {
-                return other.tryParse(in);
-            }
-        };
+        BitSet first = null;
+        if (first() != null && other.first() != null) {
+            first = (BitSet) first().clone();
+            first.or(other.first());
+        }
+        return predicted(first, (in, offset) -> {
+            var result = tryParse(in, offset);
+            return result instanceof Parsed<T> ? result : other.tryParse(in, offset);
+        });
     }
 
     default Lexer<Queue<T>> repeating() {
-        return in -> {
+        return (in, offset) -> {
             var queue = new ArrayDeque<T>();
-            var thrown = false;
-            var rest = in;
-            while (!thrown) {
-                try {
-                    var parsed = tryParse(rest);
-                    queue.add(parsed.parsed());
-                    rest = parsed.rest();
-                } catch (ParseException e) {
-                    thrown = true;
-                }
+            var position = offset;
+            while (tryParse(in, position) instanceof Parsed<T> parsed) {
+                queue.add(parsed.parsed());
+                position = parsed.offset();
             }
-            return new Parsed<>(queue, rest);
+            return new Parsed<>(queue, position);
         };
     }
 
@@ -108,7 +208,47 @@ public interface Lexer<T> {
         return andThen(other).map(Pair::right);
     }
 
-    record Parsed<T>(T parsed, CharSequence rest) {}
+    /**
+     * Attaches the characters that {@code lexer} is known to start with.
+     */
+    private static <T> Lexer<T> predicted(BitSet first, Lexer<T> lexer) {
+        if (first == null) {
+            return lexer;
+        }
+        return new Lexer<>() {
+            @Override
+            public Result<T> tryParse(CharSequence in, int offset) {
+                return lexer.tryParse(in, offset);
+            }
+
+            @Override
+            public BitSet first() {
+                return first;
+            }
+        };
+    }
+
+    sealed interface Result<T> permits Parsed, Failure {}
+
+    /**
+     * A successful match, where {@code offset} is the position just past the consumed input.
+     */
+    record Parsed<T>(T parsed, int offset) implements Result<T> {}
+
+    /**
+     * A mismatch. The error message is only rendered once a failure actually escapes through {@link #parse}.
+     */
+    record Failure<T>(String reason, CharSequence in, int offset) implements Result<T> {
+        public String message() {
+            int end = Math.min(offset + 20, in.length());
+            return reason + "\n" + in.subSequence(offset, end);
+        }
+
+        @SuppressWarnings("unchecked")
+        <U> Failure<U> retype() {
+            return (Failure<U>) this;
+        }
+    }
 
     class ParseException extends Exception {
         public ParseException(String message) {
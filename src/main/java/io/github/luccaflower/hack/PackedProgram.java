@@ -0,0 +1,185 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.Segment;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Holds parsed instructions in memory as a flat {@code int[]} instead of one record each. Every instruction takes two
+ * ints: the opcode in the low byte of the first with a numeric operand above it, and a second operand in the other,
+ * with names interned in a {@link SymbolTable} and referenced by id. Calls, which have three operands, take a second
+ * pair for their return label. Iterating decodes records on the fly, so passes written against {@link VMInstruction}
+ * work unchanged and the records they see are short-lived. Only instructions the parser produces can be stored.
+ */
+public class PackedProgram extends AbstractCollection<VMInstruction> implements Consumer<VMInstruction> {
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+    private final SymbolTable symbols = new SymbolTable();
+    private int[] code = new int[128];
+    private int length = 0;
+    private int size = 0;
+
+    private enum Opcode {
+        PUSH_CONSTANT, PUSH_SEGMENT, POP_SEGMENT, PUSH_TEMP, POP_TEMP, PUSH_STATIC, POP_STATIC, PUSH_POINTER,
+        POP_POINTER, ADD, SUBTRACT, NEGATIVE, AND, OR, NOT, EQUAL, GREATER_THAN, LESS_THAN, LABEL, GOTO, IF_GOTO,
+        DEFINE_FUNCTION, CALL_FUNCTION, RETURN
+    }
+
+    /**
+     * Interns names, so each distinct label, function or file name is stored once per program.
+     */
+    public static class SymbolTable {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        public int id(String name) {
+            return ids.computeIfAbsent(name, n -> {
+                names.add(n);
+                return names.size() - 1;
+            });
+        }
+
+        public String name(int id) {
+            return names.get(id);
+        }
+
+        public int size() {
+            return names.size();
+        }
+    }
+
+    @Override
+    public void accept(VMInstruction instruction) {
+        switch (instruction) {
+            case VMInstruction.PushConstant(var val) -> append(Opcode.PUSH_CONSTANT, val);
+            case VMInstruction.PushSegment(var segment, var val) ->
+                    append(Opcode.PUSH_SEGMENT, segment.ordinal(), val);
+            case VMInstruction.PopSegment(var segment, var val) -> append(Opcode.POP_SEGMENT, segment.ordinal(), val);
+            case VMInstruction.PushTemp(var val) -> append(Opcode.PUSH_TEMP, val);
+            case VMInstruction.PopTemp(var val) -> append(Opcode.POP_TEMP, val);
+            case VMInstruction.PushStatic(var name, var val) -> append(Opcode.PUSH_STATIC, symbols.id(name), val);
+            case VMInstruction.PopStatic(var name, var val) -> append(Opcode.POP_STATIC, symbols.id(name), val);
+            case VMInstruction.PushPointer(var val) -> append(Opcode.PUSH_POINTER, val);
+            case VMInstruction.PopPointer(var val) -> append(Opcode.POP_POINTER, val);
+            case VMInstruction.Add a -> append(Opcode.ADD, 0);
+            case VMInstruction.Subtract s -> append(Opcode.SUBTRACT, 0);
+            case VMInstruction.Negative n -> append(Opcode.NEGATIVE, 0);
+            case VMInstruction.And a -> append(Opcode.AND, 0);
+            case VMInstruction.Or o -> append(Opcode.OR, 0);
+            case VMInstruction.Not n -> append(Opcode.NOT, 0);
+            case VMInstruction.Equal(var scope, var count) -> append(Opcode.EQUAL, symbols.id(scope), count);
+            case VMInstruction.GreaterThan(var scope, var count) ->
+                    append(Opcode.GREATER_THAN, symbols.id(scope), count);
+            case VMInstruction.LessThan(var scope, var count) -> append(Opcode.LESS_THAN, symbols.id(scope), count);
+            case VMInstruction.Label(var name) -> append(Opcode.LABEL, symbols.id(name));
+            case VMInstruction.GoTo(var name) -> append(Opcode.GOTO, symbols.id(name));
+            case VMInstruction.IfGoTo(var name) -> append(Opcode.IF_GOTO, symbols.id(name));
+            case VMInstruction.DefineFunction(var name, var locals) ->
+                    append(Opcode.DEFINE_FUNCTION, symbols.id(name), locals);
+            case VMInstruction.CallFunction(var name, var args, var returnLabel) -> {
+                append(Opcode.CALL_FUNCTION, symbols.id(name), args);
+                pair(0, symbols.id(returnLabel));
+            }
+            case VMInstruction.Return r -> append(Opcode.RETURN, 0);
+            case VMInstruction.Null n -> {
+            }
+            default -> throw new IllegalArgumentException("Cannot pack " + instruction.getClass().getSimpleName());
+        }
+    }
+
+    @Override
+    public boolean add(VMInstruction instruction) {
+        accept(instruction);
+        return true;
+    }
+
+    private void append(Opcode opcode, int a) {
+        append(opcode, a, 0);
+    }
+
+    private void append(Opcode opcode, int a, int b) {
+        pair(opcode.ordinal() | b << 8, a);
+        size++;
+    }
+
+    private void pair(int head, int a) {
+        if (length + 2 > code.length) {
+            code = Arrays.copyOf(code, Math.max(length + 2, code.length + (code.length >> 1)));
+        }
+        code[length++] = head;
+        code[length++] = a;
+    }
+
+    /**
+     * Decodes the instruction that starts at offset {@code i} of {@link #code}.
+     */
+    private VMInstruction decode(int i) {
+        var a = code[i + 1];
+        var b = code[i] >> 8;
+        return switch (OPCODES[code[i] & 0xff]) {
+            case PUSH_CONSTANT -> new VMInstruction.PushConstant((short) a);
+            case PUSH_SEGMENT -> new VMInstruction.PushSegment(SEGMENTS[a], (short) b);
+            case POP_SEGMENT -> new VMInstruction.PopSegment(SEGMENTS[a], (short) b);
+            case PUSH_TEMP -> new VMInstruction.PushTemp((short) a);
+            case POP_TEMP -> new VMInstruction.PopTemp((short) a);
+            case PUSH_STATIC -> new VMInstruction.PushStatic(symbols.name(a), (short) b);
+            case POP_STATIC -> new VMInstruction.PopStatic(symbols.name(a), (short) b);
+            case PUSH_POINTER -> new VMInstruction.PushPointer((short) a);
+            case POP_POINTER -> new VMInstruction.PopPointer((short) a);
+            case ADD -> VMInstruction.Stateless.ADD;
+            case SUBTRACT -> VMInstruction.Stateless.SUBTRACT;
+            case NEGATIVE -> VMInstruction.Stateless.NEGATIVE;
+            case AND -> VMInstruction.Stateless.AND;
+            case OR -> VMInstruction.Stateless.OR;
+            case NOT -> VMInstruction.Stateless.NOT;
+            case EQUAL -> new VMInstruction.Equal(symbols.name(a), b);
+            case GREATER_THAN -> new VMInstruction.GreaterThan(symbols.name(a), b);
+            case LESS_THAN -> new VMInstruction.LessThan(symbols.name(a), b);
+            case LABEL -> new VMInstruction.Label(symbols.name(a));
+            case GOTO -> new VMInstruction.GoTo(symbols.name(a));
+            case IF_GOTO -> new VMInstruction.IfGoTo(symbols.name(a));
+            case DEFINE_FUNCTION -> new VMInstruction.DefineFunction(symbols.name(a), b);
+            case CALL_FUNCTION -> new VMInstruction.CallFunction(symbols.name(a), b, symbols.name(code[i + 3]));
+            case RETURN -> VMInstruction.Stateless.RETURN;
+        };
+    }
+
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<VMInstruction> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < length;
+            }
+
+            @Override
+            public VMInstruction next() {
+                if (next >= length) {
+                    throw new NoSuchElementException();
+                }
+                var instruction = decode(next);
+                next += instruction instanceof VMInstruction.CallFunction ? 4 : 2;
+                return instruction;
+            }
+        };
+    }
+}
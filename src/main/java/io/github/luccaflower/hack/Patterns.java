@@ -0,0 +1,203 @@
+package io.github.luccaflower.hack;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * The characters that matches of the regular expressions in a {@link Lexer} can start with.
+ */
+final class Patterns {
+    /**
+     * Only ASCII characters are predicted. A match that can start with anything else has no first characters.
+     */
+    static final int ASCII = 128;
+    private static final String SPECIAL = ".^$*+?{}()[]|\\";
+
+    private Patterns() {}
+
+    /**
+     * The characters that every non-empty match of {@code pattern} starts with, or {@code null} if a match can be
+     * empty or start with a character this analysis does not understand. Only literals, character classes without
+     * negation, {@code \d}, {@code \s}, groups and alternation are understood.
+     */
+    static BitSet first(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        var regex = pattern.pattern();
+        var first = new BitSet(ASCII);
+        return alternatives(regex, 0, regex.length(), first) ? first : null;
+    }
+
+    /**
+     * Adds the first characters of each {@code |}-separated alternative in {@code regex[start, end)} to {@code first}.
+     */
+    private static boolean alternatives(String regex, int start, int end, BitSet first) {
+        var from = start;
+        var depth = 0;
+        for (int i = start; i < end; i++) {
+            switch (regex.charAt(i)) {
+                case '\\' -> i++;
+                case '[' -> i = classEnd(regex, i);
+                case '(' -> depth++;
+                case ')' -> depth--;
+                case '|' -> {
+                    if (depth == 0) {
+                        if (!term(regex, from, i, first)) {
+                            return false;
+                        }
+                        from = i + 1;
+                    }
+                }
+                default -> {}
+            }
+            if (i < 0) {
+                return false;
+            }
+        }
+        return term(regex, from, end, first);
+    }
+
+    /**
+     * Adds the first characters of the first atom in {@code regex[start, end)}, provided it cannot be skipped.
+     */
+    private static boolean term(String regex, int start, int end, BitSet first) {
+        if (start >= end) {
+            return false;
+        }
+        var c = regex.charAt(start);
+        int next;
+        var atom = new BitSet(ASCII);
+        switch (c) {
+            case '(' -> {
+                next = groupEnd(regex, start, end);
+                if (next < 0 || regex.startsWith("(?", start) || !alternatives(regex, start + 1, next - 1, atom)) {
+                    return false;
+                }
+            }
+            case '[' -> {
+                next = classEnd(regex, start) + 1;
+                if (next <= 0 || !characterClass(regex, start + 1, next - 1, atom)) {
+                    return false;
+                }
+            }
+            case '\\' -> {
+                next = start + 2;
+                if (next > end || !escape(regex.charAt(start + 1), atom)) {
+                    return false;
+                }
+            }
+            default -> {
+                if (SPECIAL.indexOf(c) >= 0 || c >= ASCII) {
+                    return false;
+                }
+                next = start + 1;
+                atom.set(c);
+            }
+        }
+        if (next < end && "?*{".indexOf(regex.charAt(next)) >= 0) {
+            return false;
+        }
+        first.or(atom);
+        return true;
+    }
+
+    private static boolean characterClass(String regex, int start, int end, BitSet atom) {
+        if (start >= end || regex.charAt(start) == '^') {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            var c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i >= end || !escape(regex.charAt(i), atom)) {
+                    return false;
+                }
+            } else if (c == '[' || c == '&' || c >= ASCII) {
+                return false;
+            } else if (i + 2 < end && regex.charAt(i + 1) == '-') {
+                var last = regex.charAt(i + 2);
+                if (last == '\\' || last >= ASCII || last < c) {
+                    return false;
+                }
+                atom.set(c, last + 1);
+                i += 2;
+            } else {
+                atom.set(c);
+            }
+        }
+        return true;
+    }
+
+    private static boolean escape(char c, BitSet atom) {
+        switch (c) {
+            case 'd' -> atom.set('0', '9' + 1);
+            case 's' -> {
+                atom.set(' ');
+                atom.set('\t', '\r' + 1);
+            }
+            case 't' -> atom.set('\t');
+            case 'n' -> atom.set('\n');
+            case 'r' -> atom.set('\r');
+            case 'f' -> atom.set('\f');
+            default -> {
+                if (Character.isLetterOrDigit(c) || c >= ASCII) {
+                    return false;
+                }
+                atom.set(c);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The index just past the {@code )} closing the group opened at {@code start}, or -1.
+     */
+    private static int groupEnd(String regex, int start, int end) {
+        var depth = 0;
+        for (int i = start; i < end; i++) {
+            switch (regex.charAt(i)) {
+                case '\\' -> i++;
+                case '[' -> {
+                    i = classEnd(regex, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                }
+                case '(' -> depth++;
+                case ')' -> {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+                default -> {}
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The index of the {@code ]} closing the character class opened at {@code start}, or -1.
+     */
+    private static int classEnd(String regex, int start) {
+        var i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < regex.length(); i++) {
+            switch (regex.charAt(i)) {
+                case '\\' -> i++;
+                case '[' -> {
+                    return -1;
+                }
+                case ']' -> {
+                    return i;
+                }
+                default -> {}
+            }
+        }
+        return -1;
+    }
+}
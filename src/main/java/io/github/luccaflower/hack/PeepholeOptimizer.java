@@ -0,0 +1,245 @@
+package io.github.luccaflower.hack;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites generated Hack assembly through a small sliding window of lines before passing it on. Every rule only
+ * matches code shaped like the {@link VMInstruction} templates, where the code after a pop always starts by loading A,
+ * and removes at least one ROM word without changing what the program computes.
+ */
+public class PeepholeOptimizer implements Appendable, Flushable {
+    private static final int CAPACITY = 256;
+    private final Appendable out;
+    private final Set<Rule> rules;
+    private final List<String> window = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+    private long removed = 0;
+
+    public PeepholeOptimizer(Appendable out) {
+        this(out, EnumSet.allOf(Rule.class));
+    }
+
+    public PeepholeOptimizer(Appendable out, Set<Rule> rules) {
+        this.out = out;
+        this.rules = rules;
+    }
+
+    public enum Rule {
+        /**
+         * A push immediately followed by a pop leaves the pushed value in D, so both can go, including the store to
+         * the stack slot that is dead once SP is back where it started:
+         * {@code @SP A=M M=D @SP M=M+1 @SP AM=M-1 D=M}.
+         */
+        PUSH_POP(9) {
+            @Override
+            boolean apply(List<String> lines, int i) {
+                if (matches(lines, i, "@SP", "A=M", "M=D", "@SP", "M=M+1", "@SP", "AM=M-1", "D=M")
+                        && reloadsA(lines.get(i + 8))) {
+                    lines.subList(i, i + 8).clear();
+                    return true;
+                }
+                return false;
+            }
+        },
+        /**
+         * Incrementing SP and then decrementing it again only needs to point A at the top of the stack:
+         * {@code @SP M=M+1 @SP AM=M-1} becomes {@code @SP A=M}.
+         */
+        INCREMENT_DECREMENT(4) {
+            @Override
+            boolean apply(List<String> lines, int i) {
+                if (matches(lines, i, "@SP", "M=M+1", "@SP", "AM=M-1")) {
+                    lines.subList(i + 1, i + 4).clear();
+                    lines.add(i + 1, "A=M");
+                    return true;
+                }
+                return false;
+            }
+        },
+        /**
+         * Reading back a value that was just stored from D: {@code @x M=D @x D=M} becomes {@code @x M=D}.
+         */
+        STORE_LOAD(4) {
+            @Override
+            boolean apply(List<String> lines, int i) {
+                var address = lines.get(i);
+                if (isAddress(address) && matches(lines, i + 1, "M=D", address, "D=M")) {
+                    lines.subList(i + 2, i + 4).clear();
+                    return true;
+                }
+                return false;
+            }
+        },
+        /**
+         * Two stores to the same address where the second does not read the first: {@code @x M=c1 @x M=c2} becomes
+         * {@code @x M=c2}.
+         */
+        DEAD_STORE(4) {
+            @Override
+            boolean apply(List<String> lines, int i) {
+                var address = lines.get(i);
+                var first = lines.get(i + 1);
+                var second = lines.get(i + 3);
+                if (isAddress(address) && address.equals(lines.get(i + 2))
+                        && first.startsWith("M=") && first.indexOf(';') < 0 && second.startsWith("M=")
+                        && second.indexOf('M', 2) < 0 && second.indexOf(';') < 0) {
+                    lines.subList(i + 1, i + 3).clear();
+                    return true;
+                }
+                return false;
+            }
+        },
+        /**
+         * Loading an address that A already holds: {@code @x c @x} becomes {@code @x c} when {@code c} neither
+         * writes A nor jumps, and {@code @x @y} becomes {@code @y}.
+         */
+        REDUNDANT_LOAD(3) {
+            @Override
+            boolean apply(List<String> lines, int i) {
+                var address = lines.get(i);
+                if (!isAddress(address)) {
+                    return false;
+                }
+                if (isAddress(lines.get(i + 1))) {
+                    lines.remove(i);
+                    return true;
+                }
+                var compute = lines.get(i + 1);
+                if (address.equals(lines.get(i + 2)) && isCompute(compute) && !writesA(compute)
+                        && compute.indexOf(';') < 0) {
+                    lines.remove(i + 2);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private final int length;
+
+        Rule(int length) {
+            this.length = length;
+        }
+
+        /**
+         * Rewrites {@code lines} in place if this rule matches at {@code i}. At least {@link #length} lines are
+         * available from {@code i}.
+         */
+        abstract boolean apply(List<String> lines, int i);
+
+        private static boolean matches(List<String> lines, int i, String... expected) {
+            for (int j = 0; j < expected.length; j++) {
+                if (!lines.get(i + j).equals(expected[j])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isAddress(String line) {
+            return line.startsWith("@");
+        }
+
+        private static boolean isCompute(String line) {
+            return !line.startsWith("@") && !line.startsWith("(");
+        }
+
+        private static boolean reloadsA(String line) {
+            return line.startsWith("@") || line.startsWith("(");
+        }
+
+        private static boolean writesA(String line) {
+            var equals = line.indexOf('=');
+            return equals >= 0 && line.substring(0, equals).indexOf('A') >= 0;
+        }
+    }
+
+    /**
+     * The number of lines removed so far. Every rule only removes instructions, so this is also the number of ROM
+     * words saved.
+     */
+    public long removed() {
+        return removed;
+    }
+
+    @Override
+    public PeepholeOptimizer append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public PeepholeOptimizer append(CharSequence csq, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public PeepholeOptimizer append(char c) throws IOException {
+        if (c == '\n') {
+            window.add(line.toString());
+            line.setLength(0);
+            if (window.size() >= CAPACITY) {
+                optimize(false);
+            }
+        } else {
+            line.append(c);
+        }
+        return this;
+    }
+
+    /**
+     * Optimizes and writes out everything received so far. Call this once the program is complete, since rules
+     * cannot match across a flush.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!line.isEmpty()) {
+            append('\n');
+        }
+        optimize(true);
+        if (out instanceof Flushable flushable) {
+            flushable.flush();
+        }
+    }
+
+    /**
+     * Applies rules from the start of the window. Unless {@code all} is set, a position is only examined once the
+     * longest rule fits behind it, and the lines that no later rewrite can reach are written out.
+     */
+    private void optimize(boolean all) throws IOException {
+        var longest = rules.stream().mapToInt(r -> r.length).max().orElse(0);
+        int i = 0;
+        while (i < window.size() && (all || window.size() - i >= longest)) {
+            if (applyAt(i)) {
+                i = Math.max(0, i - longest);
+            } else {
+                i++;
+            }
+        }
+        var done = all ? window.size() : Math.max(0, i - longest);
+        var finished = window.subList(0, done);
+        for (var l : finished) {
+            out.append(l).append('\n');
+        }
+        finished.clear();
+    }
+
+    private boolean applyAt(int i) {
+        for (var rule : rules) {
+            if (window.size() - i >= rule.length) {
+                var before = window.size();
+                if (rule.apply(window, i)) {
+                    removed += before - window.size();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,220 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Counts the ROM words generated for each function, broken down by the kind of VM instruction they were generated
+ * for, and writes them out as JSON or CSV. Words are counted as the code writer produces them, after every rewriting
+ * pass but before peephole optimization. The bootstrap code and shared routines are counted under {@link #RUNTIME}, and
+ * code outside any function under the name of its file.
+ */
+public class RomReport {
+    public static final String RUNTIME = "$runtime";
+    /**
+     * The kind that words written before the first instruction are counted under.
+     */
+    static final String BOOTSTRAP = "Bootstrap";
+    private final Map<String, Map<String, Long>> words = new ConcurrentHashMap<>();
+
+    /**
+     * Starts counting one translation unit. Units may be counted concurrently.
+     */
+    public Unit unit(String name) {
+        return new Unit(name);
+    }
+
+    /**
+     * Words per instruction kind for each function.
+     */
+    public Map<String, Map<String, Long>> words() {
+        var sorted = new TreeMap<String, Map<String, Long>>();
+        words.forEach((function, kinds) -> sorted.put(function, new TreeMap<>(kinds)));
+        return sorted;
+    }
+
+    public long total() {
+        return words.values().stream().flatMap(k -> k.values().stream()).mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * The functions in order of decreasing size.
+     */
+    public List<String> largest() {
+        return words.keySet().stream()
+                .sorted(Comparator.comparingLong(this::size).reversed().thenComparing(Comparator.naturalOrder()))
+                .toList();
+    }
+
+    public long size(String function) {
+        return words.getOrDefault(function, Map.of()).values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Writes the report to {@code path}, as JSON if its name ends in .json and as CSV if it ends in .csv.
+     */
+    public void write(Path path) throws IOException {
+        try (var out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            if (path.toString().endsWith(".json")) {
+                writeJson(out);
+            } else if (path.toString().endsWith(".csv")) {
+                writeCsv(out);
+            } else {
+                throw new IllegalArgumentException("ROM report must be .json or .csv: " + path);
+            }
+        }
+    }
+
+    /**
+     * {@code {"total": words, "functions": [{"name": ..., "words": ..., "kinds": {kind: words}}]}}, largest function
+     * first.
+     */
+    void writeJson(Appendable out) throws IOException {
+        out.append("{\"total\":").append(Long.toString(total())).append(",\"functions\":[");
+        var first = true;
+        for (var function : largest()) {
+            out.append(first ? "\n" : ",\n");
+            first = false;
+            out.append("{\"name\":").append(quote(function))
+                    .append(",\"words\":").append(Long.toString(size(function)))
+                    .append(",\"kinds\":{");
+            var firstKind = true;
+            for (var kind : new TreeMap<>(words.get(function)).entrySet()) {
+                out.append(firstKind ? "" : ",").append(quote(kind.getKey())).append(':')
+                        .append(Long.toString(kind.getValue()));
+                firstKind = false;
+            }
+            out.append("}}");
+        }
+        out.append("\n]}\n");
+    }
+
+    /**
+     * One {@code function,kind,words} row per kind, largest function first.
+     */
+    void writeCsv(Appendable out) throws IOException {
+        out.append("function,kind,words\n");
+        for (var function : largest()) {
+            for (var kind : new TreeMap<>(words.get(function)).entrySet()) {
+                out.append(function).append(',').append(kind.getKey()).append(',')
+                        .append(Long.toString(kind.getValue())).append('\n');
+            }
+        }
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * Attributes the words of one translation unit to the function and instruction kind that was last passed through
+     * {@link #track}.
+     */
+    public final class Unit {
+        private final Map<String, Map<String, Long>> counted = new HashMap<>();
+        private String function;
+        private String kind = BOOTSTRAP;
+
+        private Unit(String name) {
+            this.function = name;
+        }
+
+        /**
+         * Wraps the sink that generates code into {@link #count}, noting each instruction it is given.
+         */
+        public Consumer<VMInstruction> track(Consumer<VMInstruction> sink) {
+            return instruction -> {
+                if (instruction instanceof VMInstruction.DefineFunction(var name, var locals)) {
+                    function = name;
+                }
+                kind = instruction.getClass().getSimpleName();
+                sink.accept(instruction);
+            };
+        }
+
+        /**
+         * Wraps the assembly output of the unit, counting every line that is not a label declaration.
+         */
+        public Appendable count(Appendable out) {
+            return new WordCounter(out) {
+                @Override
+                void word() {
+                    counted.computeIfAbsent(function, f -> new HashMap<>()).merge(kind, 1L, Long::sum);
+                }
+            };
+        }
+
+        /**
+         * Adds the unit's counts to the report.
+         */
+        public void finish() {
+            counted.forEach((f, kinds) -> kinds.forEach((k, n) ->
+                    words.computeIfAbsent(f, x -> new ConcurrentHashMap<>()).merge(k, n, Long::sum)));
+            counted.clear();
+        }
+    }
+
+    /**
+     * Passes assembly through, calling {@link #word} at the end of every line that is neither empty nor a label.
+     */
+    public static class WordCounter implements Appendable {
+        private final Appendable out;
+        private boolean lineStart = true;
+        private boolean label = false;
+        private long words = 0;
+
+        public WordCounter(Appendable out) {
+            this.out = out;
+        }
+
+        public long words() {
+            return words;
+        }
+
+        void word() {
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                scan(csq.charAt(i));
+            }
+            out.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            scan(c);
+            out.append(c);
+            return this;
+        }
+
+        private void scan(char c) {
+            if (c == '\n') {
+                if (!lineStart && !label) {
+                    words++;
+                    word();
+                }
+                lineStart = true;
+            } else if (lineStart) {
+                label = c == '(';
+                lineStart = false;
+            }
+        }
+    }
+}
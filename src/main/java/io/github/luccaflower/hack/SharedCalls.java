@@ -0,0 +1,81 @@
+package io.github.luccaflower.hack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Replaces the inlined frame handling of calls and returns with jumps to one shared call routine and one shared return
+ * routine, and keeps count of the sites so it can report how many ROM words that saved. One instance covers a whole
+ * program and may be shared by translation units that are parsed concurrently.
+ */
+public class SharedCalls {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger returns = new AtomicInteger();
+
+    /**
+     * Returns a sink that passes every instruction on to {@code sink}, with calls and returns turned into jumps to the
+     * shared routines.
+     */
+    public Consumer<VMInstruction> rewrite(Consumer<? super VMInstruction> sink) {
+        return instruction -> sink.accept(replace(instruction));
+    }
+
+    private VMInstruction replace(VMInstruction instruction) {
+        return switch (instruction) {
+            case VMInstruction.CallFunction(var name, var args, var returnLabel) -> {
+                calls.incrementAndGet();
+                yield new VMInstruction.SharedCall(name, args, returnLabel);
+            }
+            case VMInstruction.Return r -> {
+                returns.incrementAndGet();
+                yield new VMInstruction.SharedReturn();
+            }
+            default -> instruction;
+        };
+    }
+
+    /**
+     * The routines that have been jumped to, to be emitted once after the program.
+     */
+    public List<VMInstruction> routines() {
+        var routines = new ArrayList<VMInstruction>();
+        if (calls.get() > 0) {
+            routines.add(new VMInstruction.CallRoutine());
+        }
+        if (returns.get() > 0) {
+            routines.add(new VMInstruction.ReturnRoutine());
+        }
+        return routines;
+    }
+
+    /**
+     * Both routines, for programs that include code this instance has not seen.
+     */
+    public static List<VMInstruction> allRoutines() {
+        return List.of(new VMInstruction.CallRoutine(), new VMInstruction.ReturnRoutine());
+    }
+
+    /**
+     * The ROM words saved by the sites seen so far, net of the routines they need.
+     */
+    public int saved() {
+        return saved(calls.get(), new VMInstruction.CallFunction("", 0, ""), new VMInstruction.SharedCall("", 0, ""),
+                new VMInstruction.CallRoutine())
+                + saved(returns.get(), new VMInstruction.Return(), new VMInstruction.SharedReturn(),
+                new VMInstruction.ReturnRoutine());
+    }
+
+    public int sites() {
+        return calls.get() + returns.get();
+    }
+
+    private static int saved(int sites, VMInstruction inlined, VMInstruction shared, VMInstruction routine) {
+        if (sites == 0) {
+            return 0;
+        }
+        var perSite = VMInstruction.words(inlined) - VMInstruction.words(shared);
+        return sites * perSite - VMInstruction.words(routine);
+    }
+}
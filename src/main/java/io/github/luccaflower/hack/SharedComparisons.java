@@ -0,0 +1,81 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.Comparison;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Replaces inlined eq/gt/lt blocks with calls to one shared routine per comparison kind, and keeps count of the call
+ * sites so it can report how many ROM words that saved. One instance covers a whole program and may be shared by
+ * translation units that are parsed concurrently.
+ */
+public class SharedComparisons {
+    private final AtomicIntegerArray sites = new AtomicIntegerArray(Comparison.values().length);
+
+    /**
+     * Returns a sink that passes every instruction on to {@code sink}, with comparisons turned into routine calls.
+     */
+    public Consumer<VMInstruction> rewrite(Consumer<? super VMInstruction> sink) {
+        return instruction -> sink.accept(replace(instruction));
+    }
+
+    private VMInstruction replace(VMInstruction instruction) {
+        return switch (instruction) {
+            case VMInstruction.Equal(var scope, var count) -> call(Comparison.EQ, scope, count);
+            case VMInstruction.GreaterThan(var scope, var count) -> call(Comparison.GT, scope, count);
+            case VMInstruction.LessThan(var scope, var count) -> call(Comparison.LT, scope, count);
+            default -> instruction;
+        };
+    }
+
+    private VMInstruction call(Comparison comparison, String scope, int count) {
+        sites.incrementAndGet(comparison.ordinal());
+        return new VMInstruction.CompareCall(comparison, scope, count);
+    }
+
+    /**
+     * The routines for every comparison kind that has been called, to be emitted once after the program.
+     */
+    public List<VMInstruction> routines() {
+        return used().<VMInstruction>map(VMInstruction.ComparisonRoutine::new).toList();
+    }
+
+    /**
+     * The routines for every comparison kind, for programs that include code this instance has not seen.
+     */
+    public static List<VMInstruction> allRoutines() {
+        return Arrays.stream(Comparison.values()).<VMInstruction>map(VMInstruction.ComparisonRoutine::new).toList();
+    }
+
+    /**
+     * The ROM words saved by the call sites seen so far, net of the routines they need.
+     */
+    public int saved() {
+        return used()
+                .mapToInt(c -> {
+                    var perSite = inlined(c) - VMInstruction.words(new VMInstruction.CompareCall(c, "", 0));
+                    return sites.get(c.ordinal()) * perSite - VMInstruction.words(new VMInstruction.ComparisonRoutine(c));
+                })
+                .sum();
+    }
+
+    public int sites() {
+        return Arrays.stream(Comparison.values()).mapToInt(c -> sites.get(c.ordinal())).sum();
+    }
+
+    private Stream<Comparison> used() {
+        return Arrays.stream(Comparison.values()).filter(c -> sites.get(c.ordinal()) > 0);
+    }
+
+    private static int inlined(Comparison comparison) {
+        return VMInstruction.words(switch (comparison) {
+            case EQ -> new VMInstruction.Equal("", 0);
+            case GT -> new VMInstruction.GreaterThan("", 0);
+            case LT -> new VMInstruction.LessThan("", 0);
+        });
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.luccaflower.hack;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Ties each ROM address of a translated program to the .vm file, line and function it was generated from, and each
+ * call site to the function it calls. Like {@link RomReport}, every translation unit is recorded on its own as the
+ * code writer produces it, and the units are then placed in ROM order. Code outside any function belongs to a function
+ * named after its file, and lines are 0 where the program was parsed ahead for whole-program passes. Peephole
+ * optimization moves code across instructions, and constant folding and the top-of-stack writer hold instructions
+ * back and emit their code when a later line arrives, so code translated with any of them cannot be mapped.
+ * <p>
+ * The written form has one tab-separated record per line: {@code size words}, then {@code code address file line
+ * function} where a new location starts, and {@code call address callee} for each call site.
+ */
+public class SourceMap {
+    private int[] starts = new int[64];
+    private Location[] locations = new Location[64];
+    private int runs = 0;
+    private int size = 0;
+    private final Map<Integer, String> calls = new TreeMap<>();
+
+    public record Location(String file, int line, String function) {
+    }
+
+    /**
+     * Starts recording one translation unit. Units may be recorded concurrently, but are placed one at a time.
+     */
+    public Unit unit(String file) {
+        return new Unit(file);
+    }
+
+    /**
+     * Lays out {@code unit} at the end of the program mapped so far.
+     */
+    public void place(Unit unit) {
+        for (var run : unit.runs) {
+            add(size + run.offset(), run.location());
+        }
+        unit.calls.forEach((offset, callee) -> calls.put(size + offset, callee));
+        size += unit.words;
+    }
+
+    private void add(int address, Location location) {
+        if (runs == starts.length) {
+            starts = Arrays.copyOf(starts, runs * 2);
+            locations = Arrays.copyOf(locations, runs * 2);
+        }
+        starts[runs] = address;
+        locations[runs++] = location;
+    }
+
+    /**
+     * The number of ROM words mapped.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Where the word at {@code address} came from, or null if it is outside the map.
+     */
+    public Location at(int address) {
+        if (address < 0 || address >= size) {
+            return null;
+        }
+        var run = Arrays.binarySearch(starts, 0, runs, address);
+        return locations[run >= 0 ? run : -run - 2];
+    }
+
+    /**
+     * The function called from each call site, by the address of its first word.
+     */
+    public Map<Integer, String> calls() {
+        return Collections.unmodifiableMap(calls);
+    }
+
+    public void write(Path path) throws IOException {
+        try (var out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(out);
+        }
+    }
+
+    void write(Appendable out) throws IOException {
+        out.append("size\t").append(Integer.toString(size)).append('\n');
+        for (int i = 0; i < runs; i++) {
+            var location = locations[i];
+            out.append("code\t").append(Integer.toString(starts[i])).append('\t').append(location.file())
+                    .append('\t').append(Integer.toString(location.line())).append('\t')
+                    .append(location.function()).append('\n');
+        }
+        for (var call : calls.entrySet()) {
+            out.append("call\t").append(Integer.toString(call.getKey())).append('\t').append(call.getValue())
+                    .append('\n');
+        }
+    }
+
+    public static SourceMap read(Path path) throws IOException {
+        try (var in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return read(in);
+        }
+    }
+
+    static SourceMap read(BufferedReader in) throws IOException {
+        var map = new SourceMap();
+        String line;
+        while ((line = in.readLine()) != null) {
+            var fields = line.split("\t");
+            switch (fields[0]) {
+                case "size" -> map.size = Integer.parseInt(fields[1]);
+                case "code" -> map.add(Integer.parseInt(fields[1]),
+                        new Location(fields[2], Integer.parseInt(fields[3]), fields[4]));
+                case "call" -> map.calls.put(Integer.parseInt(fields[1]), fields[2]);
+                default -> throw new IllegalArgumentException("Not a source map record: " + line);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Records the locations of one translation unit relative to its first word.
+     */
+    public final class Unit {
+        private final String file;
+        private final List<Run> runs = new ArrayList<>();
+        private final Map<Integer, String> calls = new TreeMap<>();
+        private String function;
+        private int line = 0;
+        private String callee;
+        private Location current;
+        private int words = 0;
+
+        private record Run(int offset, Location location) {
+        }
+
+        private Unit(String file) {
+            this.file = file;
+            this.function = file;
+        }
+
+        /**
+         * Sets the source line of the instructions that follow.
+         */
+        public void line(int line) {
+            this.line = line;
+        }
+
+        /**
+         * Wraps the sink that generates code into {@link #count}, noting function definitions and call sites.
+         */
+        public Consumer<VMInstruction> track(Consumer<VMInstruction> sink) {
+            return instruction -> {
+                switch (instruction) {
+                    case VMInstruction.DefineFunction(var name, var locals) -> function = name;
+                    case VMInstruction.CallFunction(var name, var args, var returnLabel) -> callee = name;
+                    case VMInstruction.SharedCall(var name, var args, var returnLabel) -> callee = name;
+                    default -> {
+                    }
+                }
+                sink.accept(instruction);
+                callee = null;
+            };
+        }
+
+        /**
+         * Wraps the assembly output of the unit, giving each word the current location.
+         */
+        public Appendable count(Appendable out) {
+            return new RomReport.WordCounter(out) {
+                @Override
+                void word() {
+                    if (current == null || current.line() != line || !current.function().equals(function)) {
+                        current = new Location(file, line, function);
+                        runs.add(new Run(words, current));
+                    }
+                    if (callee != null) {
+                        calls.put(words, callee);
+                        callee = null;
+                    }
+                    words++;
+                }
+            };
+        }
+    }
+}
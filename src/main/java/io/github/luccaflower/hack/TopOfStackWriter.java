@@ -0,0 +1,159 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.Comparison;
+import io.github.luccaflower.hack.VMInstruction.Segment;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * Writes assembly that keeps the top of the stack in D between instructions instead of in RAM, so a push followed by
+ * arithmetic or a pop never touches the stack at all. While a value is cached, SP points at the slot it belongs in.
+ * The value is spilled to RAM before labels, jumps, calls, returns and anything else this writer does not handle
+ * itself, so every jump target still sees the whole stack in memory, as the plain templates expect.
+ */
+public class TopOfStackWriter implements Consumer<VMInstruction>, Flushable {
+    /**
+     * Pops at offsets up to this far from the segment base step A forwards, which is shorter than computing the
+     * address while D holds the value.
+     */
+    private static final int MAX_STEPS = 9;
+    private final Appendable out;
+    private boolean cached = false;
+
+    public TopOfStackWriter(Appendable out) {
+        this.out = out;
+    }
+
+    @Override
+    public void accept(VMInstruction instruction) {
+        try {
+            emit(instruction);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Spills the cached value, so that whatever follows may assume the whole stack is in RAM.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (cached) {
+            out.append("@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+            cached = false;
+        }
+    }
+
+    private void emit(VMInstruction instruction) throws IOException {
+        switch (instruction) {
+            case VMInstruction.PushConstant(var val) -> {
+                flush();
+                switch (val) {
+                    case 0 -> out.append("D=0\n");
+                    case 1 -> out.append("D=1\n");
+                    default -> VMInstruction.PushConstant.load(out, val);
+                }
+                cached = true;
+            }
+            case VMInstruction.PushSegment(var segment, var val) -> {
+                flush();
+                switch (val) {
+                    case 0 -> out.append('@').append(segment.name()).append("\nA=M\nD=M\n");
+                    case 1 -> out.append('@').append(segment.name()).append("\nA=M+1\nD=M\n");
+                    default -> out.append('@').append(Integer.toString(val)).append("\nD=A\n@")
+                            .append(segment.name()).append("\nA=M+D\nD=M\n");
+                }
+                cached = true;
+            }
+            case VMInstruction.PushTemp(var val) -> load("R" + (5 + val));
+            case VMInstruction.PushStatic(var name, var val) -> load(name + '.' + val);
+            case VMInstruction.PushPointer(var val) -> load(Integer.toString(3 + val));
+            case VMInstruction.PopSegment(var segment, var val) -> popSegment(segment, val);
+            case VMInstruction.PopTemp(var val) -> store("R" + (5 + val));
+            case VMInstruction.PopStatic(var name, var val) -> store(name + '.' + val);
+            case VMInstruction.PopPointer(var val) -> store(Integer.toString(3 + val));
+            case VMInstruction.Add a -> binary("D=M+D");
+            case VMInstruction.Subtract s -> binary("D=M-D");
+            case VMInstruction.And a -> binary("D=M&D");
+            case VMInstruction.Or o -> binary("D=M|D");
+            case VMInstruction.Negative n -> unary("D=-D");
+            case VMInstruction.Not n -> unary("D=!D");
+            case VMInstruction.Equal(var scope, var count) -> comparison(Comparison.EQ, scope, count);
+            case VMInstruction.GreaterThan(var scope, var count) -> comparison(Comparison.GT, scope, count);
+            case VMInstruction.LessThan(var scope, var count) -> comparison(Comparison.LT, scope, count);
+            case VMInstruction.IfGoTo(var name) -> {
+                top();
+                out.append('@').append(name).append("\nD;JNE\n");
+                cached = false;
+            }
+            case VMInstruction.Null n -> {
+            }
+            default -> {
+                flush();
+                instruction.emit(out);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the top of the stack is in D, popping it from RAM if it is not cached.
+     */
+    private void top() throws IOException {
+        if (!cached) {
+            out.append("@SP\nAM=M-1\nD=M\n");
+        }
+    }
+
+    private void load(String address) throws IOException {
+        flush();
+        out.append('@').append(address).append("\nD=M\n");
+        cached = true;
+    }
+
+    private void store(String address) throws IOException {
+        top();
+        out.append('@').append(address).append("\nM=D\n");
+        cached = false;
+    }
+
+    private void popSegment(Segment segment, int val) throws IOException {
+        top();
+        if (val <= MAX_STEPS) {
+            out.append('@').append(segment.name()).append("\nA=M\n");
+            for (int i = 0; i < val; i++) {
+                out.append("A=A+1\n");
+            }
+            out.append("M=D\n");
+        } else {
+            out.append("@R13\nM=D\n@").append(Integer.toString(val)).append("\nD=A\n@").append(segment.name())
+                    .append("\nD=M+D\n@R14\nM=D\n@R13\nD=M\n@R14\nA=M\nM=D\n");
+        }
+        cached = false;
+    }
+
+    /**
+     * Combines the second element, which is always in RAM, with the top of the stack in D.
+     */
+    private void binary(String operation) throws IOException {
+        top();
+        out.append("@SP\nAM=M-1\n").append(operation).append('\n');
+        cached = true;
+    }
+
+    private void unary(String operation) throws IOException {
+        top();
+        out.append(operation).append('\n');
+        cached = true;
+    }
+
+    private void comparison(Comparison comparison, String scope, int count) throws IOException {
+        var label = scope + '$' + comparison.label() + '_' + count;
+        var end = scope + "$END_" + comparison.label() + '_' + count;
+        binary("D=M-D");
+        out.append('@').append(label).append("\nD;").append(comparison.jump()).append("\nD=0\n@").append(end)
+                .append("\n0;JMP\n(").append(label).append(")\nD=-1\n(").append(end).append(")\n");
+    }
+}
@@ -0,0 +1,119 @@
+package io.github.luccaflower.hack;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the translated assembly fragment of each .vm file on disk, keyed by a hash of the translator version, the
+ * code generation configuration, the file name and the file contents. Only files whose key is not in the cache are
+ * translated again.
+ */
+public class TranslationCache {
+    /**
+     * Bump whenever the assembly generated for an unchanged source can change.
+     */
+    static final String VERSION = "2";
+    private static final String EXTENSION = ".asm";
+    private final Path directory;
+    private final String configuration;
+    private final Set<Path> used = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger hits = new AtomicInteger();
+
+    public TranslationCache(Path directory, String configuration) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the cached fragment for {@code source}, translating it first if it is missing. Safe to call
+     * concurrently for different sources.
+     */
+    public Path fragment(Path source, Translation translation) throws IOException, Lexer.ParseException {
+        var contents = Files.readAllBytes(source);
+        var name = source.getFileName().toString().replace(".vm", "");
+        var cached = directory.resolve(key(name, contents) + EXTENSION);
+        used.add(cached);
+        if (Files.exists(cached)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        var fragment = new StringBuilder();
+        translation.translate(name, new StringReader(new String(contents, StandardCharsets.UTF_8)), fragment);
+        var temporary = Files.createTempFile(directory, name, ".tmp");
+        try {
+            Files.writeString(temporary, fragment, StandardCharsets.US_ASCII);
+            Files.move(temporary, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return cached;
+    }
+
+    /**
+     * The number of fragments that were reused rather than translated.
+     */
+    public int hits() {
+        return hits.get();
+    }
+
+    /**
+     * Memory-maps a fragment returned by {@link #fragment} and writes it to {@code out}.
+     */
+    public static void copy(Path fragment, AsciiChannelWriter out) throws IOException {
+        try (var channel = FileChannel.open(fragment, StandardOpenOption.READ)) {
+            out.write(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Appends a fragment returned by {@link #fragment} to {@code out}, through a memory map if it writes to a channel.
+     */
+    public static void copy(Path fragment, Appendable out) throws IOException {
+        if (out instanceof AsciiChannelWriter writer) {
+            copy(fragment, writer);
+        } else {
+            out.append(Files.readString(fragment, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Deletes every fragment that was not requested through this instance, so the cache does not grow with each edit.
+     */
+    public void prune() throws IOException {
+        try (var entries = Files.list(directory)) {
+            for (var entry : (Iterable<Path>) entries::iterator) {
+                if (entry.getFileName().toString().endsWith(EXTENSION) && !used.contains(entry)) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+    }
+
+    private String key(String name, byte[] contents) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update((VERSION + '\0' + configuration + '\0' + name + '\0').getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest(contents));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Translation {
+        void translate(String name, Reader source, Appendable out) throws IOException, Lexer.ParseException;
+    }
+}
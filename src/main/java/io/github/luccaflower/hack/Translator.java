@@ -1,69 +1,507 @@
 package io.github.luccaflower.hack;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
-import java.util.ArrayDeque;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class Translator {
+    private static final String CACHE_DIRECTORY = ".hackvm-cache";
+    private static final InstructionParser PARSER = new FastVMParser();
+    private final Options options;
+    private final SharedComparisons comparisons = new SharedComparisons();
+    private final SharedCalls calls = new SharedCalls();
+    private final AtomicLong folded = new AtomicLong();
+    private final AtomicLong peepholeRemoved = new AtomicLong();
+    private int cached = 0;
+    private Map<File, PackedProgram> parsed = Map.of();
+    private DeadFunctions dead;
+    private Inliner inliner;
+    private final RomReport rom;
+    private final SourceMap sourceMap;
+    private final Map<String, SourceMap.Unit> mapped = new ConcurrentHashMap<>();
+
+    public Translator(Options options) {
+        this.options = options;
+        this.rom = options.romReport() != null ? new RomReport() : null;
+        this.sourceMap = options.sourceMap() ? new SourceMap() : null;
+    }
+
     public static void main(String[] args) throws IOException {
-        String filename;
-        if (args.length == 0) {
-            filename = ".";
-        } else {
-            filename = args[0];
-        }
+        new Translator(Options.parse(args)).run();
+    }
+
+    public void run() throws IOException {
+        String filename = options.source();
         File file = new File(filename);
-        String assembly;
+        List<File> sources;
         String name;
         if (file.isDirectory()) {
             name = Arrays.stream(file.getCanonicalPath().split(FileSystems.getDefault().getSeparator()))
                     .toList()
                     .getLast();
-            var instructions = Arrays.stream(Objects.requireNonNull(file.listFiles()))
+            sources = Arrays.stream(Objects.requireNonNull(file.listFiles()))
                     .filter(f -> f.getName().endsWith(".vm"))
-                    .flatMap(f -> parse(f.getName()).stream())
-                    .collect(Collectors.toCollection(ArrayDeque::new));
-            instructions.addFirst(new VMInstruction.CallFunction("Sys.init", 0, "sysReturn"));
-            assembly = new VMCodeWriter(instructions).write();
+                    .sorted(Comparator.comparing(File::getName))
+                    .toList();
         } else if (!filename.endsWith(".vm")) {
             throw new IllegalArgumentException("Invalid filename");
         } else {
             name = filename.replace(".vm", "");
-            assembly = processSingleFile(filename);
+            sources = List.of(file);
+        }
+        var configuration = options.configuration();
+        if (options.inline() || options.removeDeadFunctions() && file.isDirectory()) {
+            parsed = parseAll(sources);
+        }
+        if (options.inline()) {
+            inliner = new Inliner(parsed.values(), Inliner.DEFAULT_BUDGET);
+            configuration += ",inlined=" + inliner.signature();
+        }
+        var outputFile = Path.of(name + options.format().extension()).toAbsolutePath();
+        long size = -1;
+        var temporary = outputFile.resolveSibling(outputFile.getFileName() + ".tmp");
+        try {
+            try (var output = new AsciiChannelWriter(FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+                var assembler = options.format() == Format.ASM ? null : new HackAssembler();
+                var direct = assembler != null && !options.peephole() && !options.topOfStack() && !options.cache()
+                        && rom == null && sourceMap == null;
+                var counter = assembler == null && options.maxRom() > 0 ? new RomReport.WordCounter(output) : null;
+                Appendable target = assembler != null ? assembler : counter != null ? counter : output;
+                var runtime = rom != null ? rom.unit(RomReport.RUNTIME) : null;
+                var bootstrap = sourceMap != null ? sourceMap.unit(RomReport.RUNTIME) : null;
+                var sink = direct ? VMCodeWriter.streaming(assembler) : runtimeWriter(target, true, runtime, bootstrap);
+                if (file.isDirectory()) {
+                    sink.accept(new VMInstruction.CallFunction("Sys.init", 0, "sysReturn"));
+                    if (options.removeDeadFunctions()) {
+                        var units = inliner == null ? parsed.values()
+                                : parsed.values().stream().map(inliner::inline).toList();
+                        dead = new DeadFunctions(units, "Sys.init");
+                        configuration += ",removed=" + String.join(",", dead.removed());
+                    }
+                    if (options.cache()) {
+                        var cache = new TranslationCache(file.toPath().resolve(CACHE_DIRECTORY), configuration);
+                        for (var fragment : translateAll(sources, cache)) {
+                            TranslationCache.copy(fragment, target);
+                        }
+                        cache.prune();
+                        cached = cache.hits();
+                    } else if (direct) {
+                        for (var fragment : assembleAll(sources)) {
+                            assembler.include(fragment);
+                        }
+                    } else {
+                        for (var fragment : translateAll(sources)) {
+                            target.append(fragment);
+                        }
+                    }
+                } else if (direct) {
+                    assemble(sources.getFirst(), assembler);
+                } else {
+                    translate(sources.getFirst(), target);
+                }
+                var routines = sourceMap != null ? sourceMap.unit(RomReport.RUNTIME) : null;
+                routines().forEach(direct ? VMCodeWriter.fragment(assembler)
+                        : runtimeWriter(target, false, runtime, routines));
+                if (runtime != null) {
+                    runtime.finish();
+                }
+                if (sourceMap != null) {
+                    sourceMap.place(bootstrap);
+                    for (var source : sources) {
+                        sourceMap.place(mapped.get(source.getName().replace(".vm", "")));
+                    }
+                    sourceMap.place(routines);
+                }
+                if (assembler != null) {
+                    var program = assembler.assemble();
+                    size = program.remaining();
+                    if (options.format() == Format.HACK) {
+                        output.write(HackAssembler.text(program));
+                    } else {
+                        output.write(HackAssembler.binary(program));
+                    }
+                } else if (counter != null) {
+                    size = counter.words();
+                }
+                if (size >= 0) {
+                    System.out.printf("ROM: %d of %d words%n", size, HackAssembler.ROM_SIZE);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(temporary, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (sourceMap != null) {
+                var mapFile = outputFile.resolveSibling(name + ".map");
+                sourceMap.write(mapFile);
+                System.out.printf("Source map: %d words, %d call sites, written to %s%n", sourceMap.size(),
+                        sourceMap.calls().size(), mapFile.getFileName());
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        report();
+        if (options.maxRom() > 0 && size > options.maxRom()) {
+            throw new IllegalStateException("ROM of %d words exceeds --max-rom=%d".formatted(size, options.maxRom()));
+        }
+    }
+
+    /**
+     * A code writer for the bootstrap code or the shared routines, counted by the ROM report and recorded in the source
+     * map when they are on.
+     */
+    private static Consumer<VMInstruction> runtimeWriter(Appendable target, boolean bootstrap, RomReport.Unit rom,
+                                                         SourceMap.Unit map) throws IOException {
+        if (rom != null) {
+            target = rom.count(target);
+        }
+        if (map != null) {
+            target = map.count(target);
+        }
+        var sink = bootstrap ? VMCodeWriter.streaming(target) : VMCodeWriter.fragment(target);
+        if (map != null) {
+            sink = map.track(sink);
+        }
+        if (rom != null) {
+            sink = rom.track(sink);
+        }
+        return sink;
+    }
+
+    /**
+     * The shared routines the program calls into, placed after it behind a {@link VMInstruction.Halt}.
+     */
+    private List<VMInstruction> routines() {
+        var routines = new ArrayList<VMInstruction>();
+        if (options.sharedComparisons()) {
+            routines.addAll(cached > 0 ? SharedComparisons.allRoutines() : comparisons.routines());
+        }
+        if (options.sharedCalls()) {
+            routines.addAll(cached > 0 ? SharedCalls.allRoutines() : calls.routines());
+        }
+        if (!routines.isEmpty()) {
+            routines.addFirst(new VMInstruction.Halt());
+        }
+        return routines;
+    }
+
+    /**
+     * Prints what the code size options achieved. Savings are measured against the inlined code before any
+     * peephole optimization, and the halt guard in front of the routines is charged to the
+     * first mode that needs it.
+     */
+    private void report() throws IOException {
+        var overhead = routines().isEmpty() ? 0 : VMInstruction.words(new VMInstruction.Halt());
+        var uncounted = cached > 0 ? " (%d cached files not counted)".formatted(cached) : "";
+        if (options.sharedComparisons()) {
+            var charged = comparisons.routines().isEmpty() ? 0 : overhead;
+            System.out.printf("Shared comparisons: %d call sites, %d words saved%s%n", comparisons.sites(),
+                    comparisons.saved() - charged, uncounted);
+            overhead -= charged;
+        }
+        if (options.sharedCalls()) {
+            System.out.printf("Shared calls: %d call and return sites, %d words saved%s%n", calls.sites(),
+                    calls.saved() - overhead, uncounted);
+        }
+        if (inliner != null) {
+            System.out.printf("Inlined: %d call sites, %d functions small enough%s%n", inliner.sites(),
+                    inliner.inlined().size(), uncounted);
         }
-        String outputFilename = name + ".asm";
-        File outputFile = new File(outputFilename);
-        if (outputFile.exists() && !(outputFile.delete())) {
-            throw new IllegalStateException("Failed to overwrite existing hack file");
+        if (dead != null) {
+            System.out.printf("Dead functions: removed %d of %d functions, %d words%s%s%n", dead.removed().size(),
+                    dead.functions(), dead.words(), uncounted,
+                    dead.removed().isEmpty() ? "" : ": " + String.join(", ", dead.removed()));
         }
-        try (var output = new FileWriter(outputFilename, false)) {
-            output.write(assembly);
+        if (options.foldConstants()) {
+            System.out.printf("Constant folding: %d instructions removed%s%n", folded.get(), uncounted);
         }
+        if (options.peephole()) {
+            System.out.printf("Peephole: %d words removed%s%n", peepholeRemoved.get(), uncounted);
+        }
+        if (rom != null) {
+            rom.write(options.romReport());
+            var largest = rom.largest().stream()
+                    .limit(3)
+                    .map(f -> "%s (%d)".formatted(f, rom.size(f)))
+                    .collect(Collectors.joining(", "));
+            System.out.printf("ROM report: %d words in %d functions before peephole optimization%s, largest %s, "
+                    + "written to %s%n", rom.total(), rom.words().size(), uncounted, largest, options.romReport());
+        }
+    }
+
+    /**
+     * Parses every file into memory, for passes that need to see the whole program before generating code.
+     */
+    private Map<File, PackedProgram> parseAll(List<File> sources) {
+        return sources.parallelStream().collect(Collectors.toMap(source -> source, source -> {
+            var instructions = new PackedProgram();
+            try (var input = new FileReader(source, StandardCharsets.UTF_8)) {
+                PARSER.parse(source.getName().replace(".vm", ""), input, instructions);
+            } catch (IOException | Lexer.ParseException e) {
+                throw new RuntimeException("Failed to process file %s".formatted(source), e);
+            }
+            return instructions;
+        }));
+    }
+
+    /**
+     * Translates each file into its own assembly fragment on the common fork-join pool. Every label a file generates
+     * is scoped by its name, so the fragments are independent and are returned in the order of {@code sources}.
+     */
+    private List<CharSequence> translateAll(List<File> sources) {
+        return sources.parallelStream()
+                .<CharSequence>map(source -> {
+                    var fragment = new StringBuilder();
+                    translate(source, fragment);
+                    return fragment;
+                })
+                .toList();
+    }
+
+    /**
+     * Like {@link #translateAll(List)}, but assembles each file into words of its own, for {@link HackAssembler#include}.
+     */
+    private List<HackAssembler> assembleAll(List<File> sources) {
+        return sources.parallelStream()
+                .map(source -> {
+                    var fragment = new HackAssembler();
+                    assemble(source, fragment);
+                    return fragment;
+                })
+                .toList();
+    }
+
+    /**
+     * Like {@link #translateAll(List)}, but only translates files that have no fragment in {@code cache} yet.
+     */
+    private List<Path> translateAll(List<File> sources, TranslationCache cache) {
+        return sources.parallelStream()
+                .map(source -> {
+                    try {
+                        return cache.fragment(source.toPath(), this::translate);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (Lexer.ParseException e) {
+                        throw new RuntimeException("Failed to process file %s".formatted(source), e);
+                    }
+                })
+                .toList();
+    }
+
+    private void translate(File file, Appendable out) {
+        translate(file, (name, source) -> translate(name, source, out));
     }
 
-    private static String processSingleFile(String filename) {
-        String machineCode;
-        Queue<VMInstruction> lexed;
-        lexed = parse(filename);
-        machineCode = new VMCodeWriter(lexed).write();
-        return machineCode;
+    /**
+     * Puts the words for one file straight into {@code out}, for ROM images built without any pass that works on the
+     * assembly text.
+     */
+    private void assemble(File file, HackAssembler out) {
+        translate(file, (name, source) -> feed(source, VMCodeWriter.fragment(out), line -> {}));
     }
 
-    private static Queue<VMInstruction> parse(String filename) {
-        Queue<VMInstruction> lexed;
-        try (var input = new BufferedReader(new InputStreamReader(new FileInputStream(filename)))) {
-            var vmCode = input.lines().collect(Collectors.joining("\n"));
-            lexed = new VMParser(filename.replace(".vm", "")).parse(vmCode);
+    private void translate(File file, Backend backend) {
+        var name = file.getName().replace(".vm", "");
+        var instructions = parsed.get(file);
+        if (instructions != null) {
+            try {
+                backend.translate(name, (sink, lines) -> instructions.forEach(sink));
+            } catch (IOException | Lexer.ParseException e) {
+                throw new RuntimeException("Failed to process file %s".formatted(file), e);
+            }
+            return;
+        }
+        try (var input = new FileReader(file, StandardCharsets.UTF_8)) {
+            backend.translate(name, (sink, lines) -> PARSER.parse(name, input, sink, lines));
         } catch (IOException | Lexer.ParseException e) {
-            throw new RuntimeException("Failed to process file %s".formatted(filename), e);
+            throw new RuntimeException("Failed to process file %s".formatted(file), e);
+        }
+    }
+
+    /**
+     * Parses one translation unit and writes its assembly, without the bootstrap code, to {@code out}.
+     */
+    private void translate(String name, Reader input, Appendable out) throws IOException, Lexer.ParseException {
+        translate(name, (sink, lines) -> PARSER.parse(name, input, sink, lines), out);
+    }
+
+    private void translate(String name, Source source, Appendable out) throws IOException, Lexer.ParseException {
+        var optimizer = options.peephole() ? new PeepholeOptimizer(out) : null;
+        Appendable target = optimizer != null ? optimizer : out;
+        var unit = rom != null ? rom.unit(name) : null;
+        if (unit != null) {
+            target = unit.count(target);
+        }
+        var located = sourceMap != null ? sourceMap.unit(name) : null;
+        if (located != null) {
+            target = located.count(target);
+            mapped.put(name, located);
+        }
+        var stack = options.topOfStack() ? new TopOfStackWriter(target) : null;
+        Consumer<VMInstruction> sink = stack != null ? stack : VMCodeWriter.fragment(target);
+        if (located != null) {
+            sink = located.track(sink);
+        }
+        if (unit != null) {
+            sink = unit.track(sink);
+        }
+        feed(source, sink, located != null ? located::line : line -> {});
+        if (stack != null) {
+            stack.flush();
+        }
+        if (unit != null) {
+            unit.finish();
+        }
+        if (optimizer != null) {
+            optimizer.flush();
+            peepholeRemoved.addAndGet(optimizer.removed());
+        }
+    }
+
+    /**
+     * Feeds one translation unit through the passes that rewrite instructions, in front of {@code sink}.
+     */
+    private void feed(Source source, Consumer<VMInstruction> sink, IntConsumer lines)
+            throws IOException, Lexer.ParseException {
+        if (options.sharedComparisons()) {
+            sink = comparisons.rewrite(sink);
         }
-        return lexed;
+        if (options.sharedCalls()) {
+            sink = calls.rewrite(sink);
+        }
+        var folder = options.foldConstants() ? new ConstantFolder(sink) : null;
+        if (folder != null) {
+            sink = folder;
+        }
+        if (inliner != null) {
+            sink = inliner.rewrite(sink);
+        }
+        if (dead != null) {
+            sink = dead.filter(sink);
+        }
+        source.feed(sink, lines);
+        if (folder != null) {
+            folder.flush();
+            folded.addAndGet(folder.folded());
+        }
+    }
+
+    /**
+     * Feeds the instructions of one translation unit to a sink, whether from source text or already parsed, and the
+     * line of each instruction to {@code lines} where it is known.
+     */
+    @FunctionalInterface
+    private interface Source {
+        void feed(Consumer<VMInstruction> sink, IntConsumer lines) throws IOException, Lexer.ParseException;
+    }
+
+    /**
+     * Translates the named unit read from a {@link Source}, into assembly text or straight into words.
+     */
+    @FunctionalInterface
+    private interface Backend {
+        void translate(String name, Source source) throws IOException, Lexer.ParseException;
     }
 
+    /**
+     * What the translator writes: Hack assembly, or a ROM image assembled in process as .hack text or raw big-endian
+     * words. A ROM image is put together from the instructions' words through {@link VMInstruction#assemble}, with no
+     * assembly text in between. The peephole optimizer, the top-of-stack writer, the ROM report, the source map and
+     * the cache all work on assembly text, so with any of them the text is generated and fed through the
+     * {@link HackAssembler} instead.
+     */
+    public enum Format {
+        ASM(".asm"),
+        HACK(".hack"),
+        BINARY(".bin");
+        private final String extension;
 
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String extension() {
+            return extension;
+        }
+    }
+
+    /**
+     * Command line options: flags start with {@code --}, some taking a value after {@code =}, and the remaining
+     * argument names the file or directory.
+     */
+    public record Options(String source, boolean cache, boolean peephole, boolean sharedComparisons,
+                          boolean sharedCalls, boolean topOfStack, boolean foldConstants,
+                          boolean removeDeadFunctions, boolean inline, Format format, Path romReport,
+                          int maxRom, boolean sourceMap) {
+        public static Options parse(String[] args) {
+            var source = ".";
+            var cache = false;
+            var peephole = false;
+            var sharedComparisons = false;
+            var sharedCalls = false;
+            var topOfStack = false;
+            var foldConstants = false;
+            var removeDeadFunctions = false;
+            var inline = false;
+            var format = Format.ASM;
+            Path romReport = null;
+            var maxRom = 0;
+            var sourceMap = false;
+            for (var arg : args) {
+                switch (arg) {
+                    case "--cache" -> cache = true;
+                    case "--peephole" -> peephole = true;
+                    case "--shared-comparisons" -> sharedComparisons = true;
+                    case "--shared-calls" -> sharedCalls = true;
+                    case "--top-of-stack" -> topOfStack = true;
+                    case "--fold-constants" -> foldConstants = true;
+                    case "--remove-dead-functions" -> removeDeadFunctions = true;
+                    case "--inline" -> inline = true;
+                    case "--hack" -> format = Format.HACK;
+                    case "--binary" -> format = Format.BINARY;
+                    case "--source-map" -> sourceMap = true;
+                    case String s when s.startsWith("--rom-report=") ->
+                            romReport = Path.of(s.substring("--rom-report=".length()));
+                    case String s when s.startsWith("--max-rom=") ->
+                            maxRom = Integer.parseInt(s.substring("--max-rom=".length()));
+                    default -> {
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + arg);
+                        }
+                        source = arg;
+                    }
+                }
+            }
+            if (sourceMap && (peephole || cache || topOfStack || foldConstants)) {
+                throw new IllegalArgumentException("--source-map cannot be combined with --peephole, --cache, "
+                        + "--top-of-stack or --fold-constants");
+            }
+            return new Options(source, cache, peephole, sharedComparisons, sharedCalls, topOfStack, foldConstants,
+                    removeDeadFunctions, inline, format, romReport, maxRom, sourceMap);
+        }
+
+        /**
+         * Describes every option that affects the generated assembly, for use in cache keys.
+         */
+        String configuration() {
+            return "peephole=%s,shared-comparisons=%s,shared-calls=%s,top-of-stack=%s,fold-constants=%s".formatted(
+                    peephole, sharedComparisons, sharedCalls, topOfStack, foldConstants);
+        }
+    }
 }
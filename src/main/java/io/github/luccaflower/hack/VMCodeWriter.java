@@ -1,26 +1,106 @@
 package io.github.luccaflower.hack;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Queue;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class VMCodeWriter {
     private final Queue<VMInstruction> instructions;
+    private final Set<PeepholeOptimizer.Rule> peephole;
     private static final String init = """
             @256
             D=A
             @SP
             M=D
             """;
+    private static final short[] INIT_WORDS = HackAssembler.fragment(init);
 
     public VMCodeWriter(Queue<VMInstruction> instructions) {
+        this(instructions, Set.of());
+    }
+
+    /**
+     * Writes {@code instructions} through a {@link PeepholeOptimizer} applying {@code peephole}, unless it is empty.
+     */
+    public VMCodeWriter(Queue<VMInstruction> instructions, Set<PeepholeOptimizer.Rule> peephole) {
         this.instructions = instructions;
+        this.peephole = peephole;
     }
 
     public String write() {
-        return init
-                .concat(instructions.stream().map(VMInstruction::toString).collect(Collectors.joining("\n")))
-                .lines()
-                .filter(l -> !l.isBlank())
-                .collect(Collectors.joining("\n"));
+        var out = new StringBuilder();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Streams the program to {@code channel} through a single reusable buffer, without building it as a String.
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        var out = new AsciiChannelWriter(channel);
+        write(out);
+        out.flush();
+    }
+
+    public void write(OutputStream out) throws IOException {
+        write(Channels.newChannel(out));
+    }
+
+    private void write(Appendable out) throws IOException {
+        out.append(init);
+        var target = peephole.isEmpty() ? out : new PeepholeOptimizer(out, peephole);
+        for (var instruction : instructions) {
+            instruction.emit(target);
+        }
+        if (target instanceof PeepholeOptimizer optimizer) {
+            optimizer.flush();
+        }
+    }
+
+    /**
+     * Writes the bootstrap code and returns a sink that writes the assembly for each instruction it accepts straight
+     * to {@code out}. I/O failures from the sink are rethrown as {@link UncheckedIOException}.
+     */
+    public static Consumer<VMInstruction> streaming(Appendable out) throws IOException {
+        out.append(init);
+        return fragment(out);
+    }
+
+    /**
+     * Like {@link #streaming}, but without the bootstrap code, for translation units that are concatenated later.
+     */
+    public static Consumer<VMInstruction> fragment(Appendable out) {
+        return instruction -> {
+            try {
+                instruction.emit(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Like {@link #streaming(Appendable)}, but puts the words for the bootstrap code and each instruction straight into
+     * {@code out} through {@link VMInstruction#assemble}, without generating assembly text.
+     */
+    public static Consumer<VMInstruction> streaming(HackAssembler out) {
+        out.code(INIT_WORDS);
+        return fragment(out);
+    }
+
+    /**
+     * Like {@link #streaming(HackAssembler)}, but without the bootstrap code.
+     */
+    public static Consumer<VMInstruction> fragment(HackAssembler out) {
+        return instruction -> instruction.assemble(out);
     }
 }
@@ -0,0 +1,600 @@
+package io.github.luccaflower.hack;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles VM programs to JVM bytecode, one static method per function in a hidden class, and runs them against a
+ * {@code short[]} memory laid out as {@link VMInterpreter} lays it out. Pushed values stay on the JVM operand stack
+ * until an instruction consumes them and only reach memory at labels, jumps, calls and returns, SP, LCL and ARG live
+ * in JVM locals, labels become JVM branch targets and calls become JVM calls, so hot code runs as fast as the JVM
+ * compiles it.
+ * <p>
+ * Since intermediate values skip memory, words above SP are not left as the translated code leaves them. The budget
+ * counts loop iterations and calls, and a program that runs out of it cannot be resumed.
+ */
+public class VMCompiler {
+    private static final String OWNER = "io/github/luccaflower/hack/VMCompiler";
+    private static final String CLASS = OWNER + "$Compiled";
+    private static final String STOP = "L" + OWNER + "$Stop;";
+    private static final String FUNCTION = "([S)V";
+    private static final String FRAME = "([SIII)V";
+    private static final String MAIN = "main";
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+    /**
+     * The JVM locals of every compiled method: the memory, SP, LCL and ARG, then scratch slots.
+     */
+    private static final int MEMORY = 0;
+    private static final int SP = 1;
+    private static final int LCL = 2;
+    private static final int ARG = 3;
+    private static final int SCRATCH = 4;
+    /**
+     * How many pushed values may wait on the operand stack before they are written to memory.
+     */
+    private static final int MAX_PENDING = 16;
+    private static final int CONDITION = SCRATCH + MAX_PENDING;
+    private static final int EXIT = -1;
+    private static final Stop HALT = new Stop();
+    private static final Stop OUT_OF_BUDGET = new Stop();
+
+    private final short[] memory = new short[1 << 15];
+    private final MethodHandle entry;
+    private final MethodHandle budget;
+    private boolean ran = false;
+    private boolean halted = false;
+
+    /**
+     * Compiles {@code program}. With {@code bootstrap}, execution starts with a call to {@code Sys.init}, as the
+     * translator starts a directory; otherwise it runs the instructions in front of the first function.
+     */
+    public VMCompiler(Collection<? extends VMInstruction> program, boolean bootstrap) {
+        var generator = new Generator(program.stream()
+                .<VMInstruction>map(i -> i)
+                .filter(i -> !(i instanceof VMInstruction.Null))
+                .toList());
+        var bytes = generator.generate();
+        var name = MAIN;
+        memory[0] = STACK_BASE;
+        if (bootstrap) {
+            name = generator.methods.get("Sys.init");
+            if (name == null) {
+                throw new IllegalArgumentException("No function Sys.init");
+            }
+            enter(memory, STACK_BASE, 0, EXIT);
+        }
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            entry = lookup.findStatic(lookup.lookupClass(), name, MethodType.methodType(void.class, short[].class));
+            budget = lookup.findStaticSetter(lookup.lookupClass(), "budget", long.class);
+        } catch (IllegalAccessException | NoSuchMethodException | NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs the program until it halts or has spent {@code budget} loop iterations and calls, and returns whether it
+     * halted. Falling off the end of the entry code or returning from {@code Sys.init} counts as halting.
+     */
+    public boolean run(long budget) {
+        if (ran) {
+            throw new IllegalStateException("A compiled program only runs once");
+        }
+        ran = true;
+        try {
+            this.budget.invokeExact(budget);
+            entry.invokeExact(memory);
+            halted = true;
+        } catch (Stop stop) {
+            halted = stop == HALT;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return halted;
+    }
+
+    public boolean halted() {
+        return halted;
+    }
+
+    public short peek(int address) {
+        return memory[address];
+    }
+
+    public void poke(int address, short value) {
+        memory[address] = value;
+    }
+
+    /**
+     * Pushes a call frame as {@link VMInstruction.CallFunction} does, with {@code site} in place of the return
+     * address, and points SP, LCL and ARG at the callee's. Called from compiled code.
+     */
+    private static void enter(short[] memory, int sp, int args, int site) {
+        memory[sp] = (short) site;
+        memory[sp + 1] = memory[1];
+        memory[sp + 2] = memory[2];
+        memory[sp + 3] = memory[3];
+        memory[sp + 4] = memory[4];
+        memory[2] = (short) (sp - args);
+        memory[1] = (short) (sp + 5);
+        memory[0] = (short) (sp + 5);
+    }
+
+    /**
+     * Returns {@code value} from the frame at {@code lcl} as {@link VMInstruction.Return} does. Called from compiled
+     * code.
+     */
+    private static void leave(short[] memory, int lcl, int arg, int value) {
+        memory[arg] = (short) value;
+        memory[4] = memory[lcl - 1];
+        memory[3] = memory[lcl - 2];
+        memory[2] = memory[lcl - 3];
+        memory[1] = memory[lcl - 4];
+        memory[0] = (short) (arg + 1);
+    }
+
+    /**
+     * Unwinds compiled code when the program halts or runs out of budget.
+     */
+    private static final class Stop extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private Stop() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Generator {
+        private final List<VMInstruction> program;
+        private final Map<String, String> methods = new HashMap<>();
+        private final Map<String, Integer> statics = new HashMap<>();
+        private final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        private MethodVisitor method;
+        private final Map<String, Label> labels = new HashMap<>();
+        private final Set<String> placed = new HashSet<>();
+        private int pending;
+        private int sites = 0;
+
+        private Generator(List<VMInstruction> program) {
+            this.program = program;
+            for (var instruction : program) {
+                switch (instruction) {
+                    case VMInstruction.DefineFunction(var name, var locals) -> {
+                        if (methods.putIfAbsent(name, "f" + methods.size()) != null) {
+                            throw new IllegalArgumentException("Function " + name + " is defined twice");
+                        }
+                    }
+                    case VMInstruction.PushStatic(var name, var val) -> variable(name + '.' + val);
+                    case VMInstruction.PopStatic(var name, var val) -> variable(name + '.' + val);
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        private byte[] generate() {
+            writer.visit(V21, ACC_FINAL | ACC_SUPER, CLASS, null, "java/lang/Object", null);
+            writer.visitField(ACC_STATIC, "budget", "J", null, null).visitEnd();
+            var start = 0;
+            var name = MAIN;
+            var locals = 0;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i == program.size() || program.get(i) instanceof VMInstruction.DefineFunction) {
+                    compile(name, locals, program.subList(start, i));
+                    if (i < program.size()) {
+                        var function = (VMInstruction.DefineFunction) program.get(i);
+                        name = methods.get(function.name());
+                        locals = function.locals();
+                        start = i + 1;
+                    }
+                }
+            }
+            writer.visitEnd();
+            return writer.toByteArray();
+        }
+
+        private void compile(String name, int locals, List<VMInstruction> body) {
+            method = writer.visitMethod(ACC_STATIC, name, FUNCTION, null, null);
+            method.visitCode();
+            labels.clear();
+            placed.clear();
+            pending = 0;
+            for (var register : List.of(SP, LCL, ARG)) {
+                method.visitVarInsn(ALOAD, MEMORY);
+                constant(register - SP);
+                method.visitInsn(SALOAD);
+                method.visitVarInsn(ISTORE, register);
+            }
+            consumeBudget();
+            for (int i = 0; i < locals; i++) {
+                method.visitVarInsn(ALOAD, MEMORY);
+                method.visitVarInsn(ILOAD, SP);
+                constant(i);
+                method.visitInsn(IADD);
+                method.visitInsn(ICONST_0);
+                method.visitInsn(SASTORE);
+            }
+            method.visitIincInsn(SP, locals);
+            var loops = loopHeads(body);
+            for (int i = 0; i < body.size(); i++) {
+                var next = i + 1 < body.size() ? body.get(i + 1) : null;
+                if (compile(body.get(i), next, i > 0 ? body.get(i - 1) : null, loops)) {
+                    i++;
+                }
+            }
+            flush();
+            storeSp();
+            method.visitInsn(RETURN);
+            for (var label : labels.keySet()) {
+                if (!placed.contains(label)) {
+                    throw new IllegalArgumentException("Unknown label " + label);
+                }
+            }
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+
+        /**
+         * Compiles one instruction and returns whether it was fused with {@code next}.
+         */
+        private boolean compile(VMInstruction instruction, VMInstruction next, VMInstruction previous,
+                                Set<String> loops) {
+            var branch = next instanceof VMInstruction.IfGoTo(var target) ? target : null;
+            switch (instruction) {
+                case VMInstruction.PushConstant(var val) -> {
+                    push();
+                    constant(val);
+                }
+                case VMInstruction.PushSegment(var segment, var val) -> {
+                    push();
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    segment(segment, val);
+                    method.visitInsn(SALOAD);
+                }
+                case VMInstruction.PopSegment(var segment, var val) -> {
+                    pop();
+                    segment(segment, val);
+                    method.visitInsn(SWAP);
+                    method.visitInsn(SASTORE);
+                }
+                case VMInstruction.PushTemp(var val) -> pushFixed(5 + val);
+                case VMInstruction.PopTemp(var val) -> popFixed(5 + val);
+                case VMInstruction.PushPointer(var val) -> pushFixed(3 + val);
+                case VMInstruction.PopPointer(var val) -> popFixed(3 + val);
+                case VMInstruction.PushStatic(var name, var val) -> pushFixed(variable(name + '.' + val));
+                case VMInstruction.PopStatic(var name, var val) -> popFixed(variable(name + '.' + val));
+                case VMInstruction.Add a -> binary(IADD, true);
+                case VMInstruction.Subtract s -> binary(ISUB, true);
+                case VMInstruction.And a -> binary(IAND, false);
+                case VMInstruction.Or o -> binary(IOR, false);
+                case VMInstruction.Negative n -> {
+                    ensure(1);
+                    method.visitInsn(INEG);
+                    method.visitInsn(I2S);
+                }
+                case VMInstruction.Not n when branch != null -> {
+                    condition();
+                    method.visitInsn(ICONST_M1);
+                    method.visitJumpInsn(IF_ICMPNE, label(branch));
+                    return true;
+                }
+                case VMInstruction.Not n -> {
+                    ensure(1);
+                    method.visitInsn(ICONST_M1);
+                    method.visitInsn(IXOR);
+                }
+                case VMInstruction.Equal e -> {
+                    return compare(IFEQ, branch);
+                }
+                case VMInstruction.GreaterThan g -> {
+                    return compare(IFGT, branch);
+                }
+                case VMInstruction.LessThan l -> {
+                    return compare(IFLT, branch);
+                }
+                case VMInstruction.Label(var name) -> {
+                    flush();
+                    method.visitLabel(label(name));
+                    placed.add(name);
+                    if (loops.contains(name)) {
+                        consumeBudget();
+                    }
+                }
+                case VMInstruction.GoTo(var name) when previous instanceof VMInstruction.Label(var here)
+                        && here.equals(name) -> {
+                    storeSp();
+                    method.visitFieldInsn(GETSTATIC, OWNER, "HALT", STOP);
+                    method.visitInsn(ATHROW);
+                }
+                case VMInstruction.GoTo(var name) -> {
+                    flush();
+                    method.visitJumpInsn(GOTO, label(name));
+                }
+                case VMInstruction.IfGoTo(var name) -> {
+                    condition();
+                    method.visitJumpInsn(IFNE, label(name));
+                }
+                case VMInstruction.CallFunction(var name, var args, var returnLabel) -> {
+                    var target = methods.get(name);
+                    if (target == null) {
+                        throw new IllegalArgumentException("Unknown function " + name);
+                    }
+                    flush();
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    method.visitVarInsn(ILOAD, SP);
+                    constant(args);
+                    constant((short) sites++);
+                    method.visitMethodInsn(INVOKESTATIC, OWNER, "enter", FRAME, false);
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    method.visitMethodInsn(INVOKESTATIC, CLASS, target, FUNCTION, false);
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    method.visitInsn(ICONST_0);
+                    method.visitInsn(SALOAD);
+                    method.visitVarInsn(ISTORE, SP);
+                }
+                case VMInstruction.Return r -> {
+                    ensure(1);
+                    method.visitVarInsn(ISTORE, CONDITION);
+                    for (; pending > 1; pending--) {
+                        method.visitInsn(POP);
+                    }
+                    pending = 0;
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    method.visitVarInsn(ILOAD, LCL);
+                    method.visitVarInsn(ILOAD, ARG);
+                    method.visitVarInsn(ILOAD, CONDITION);
+                    method.visitMethodInsn(INVOKESTATIC, OWNER, "leave", FRAME, false);
+                    method.visitInsn(RETURN);
+                }
+                default -> throw new IllegalArgumentException("Cannot compile " + instruction);
+            }
+            return false;
+        }
+
+        /**
+         * Compares the top two values by the sign of their 16-bit difference, as the translated code does, and either
+         * branches on the result or pushes it as true or false.
+         */
+        private boolean compare(int jump, String branch) {
+            ensure(2);
+            method.visitInsn(ISUB);
+            method.visitInsn(I2S);
+            pending--;
+            if (branch != null) {
+                condition();
+                method.visitJumpInsn(jump, label(branch));
+                return true;
+            }
+            var isTrue = new Label();
+            var done = new Label();
+            method.visitJumpInsn(jump, isTrue);
+            method.visitInsn(ICONST_0);
+            method.visitJumpInsn(GOTO, done);
+            method.visitLabel(isTrue);
+            method.visitInsn(ICONST_M1);
+            method.visitLabel(done);
+            return false;
+        }
+
+        private void binary(int opcode, boolean wraps) {
+            ensure(2);
+            method.visitInsn(opcode);
+            if (wraps) {
+                method.visitInsn(I2S);
+            }
+            pending--;
+        }
+
+        private void pushFixed(int address) {
+            push();
+            method.visitVarInsn(ALOAD, MEMORY);
+            constant(address);
+            method.visitInsn(SALOAD);
+        }
+
+        private void popFixed(int address) {
+            pop();
+            constant(address);
+            method.visitInsn(SWAP);
+            method.visitInsn(SASTORE);
+        }
+
+        /**
+         * Makes room for one more value on the operand stack.
+         */
+        private void push() {
+            if (pending == MAX_PENDING) {
+                flush();
+            }
+            pending++;
+        }
+
+        /**
+         * Leaves the memory array under the top value, ready for an index and a swap.
+         */
+        private void pop() {
+            ensure(1);
+            method.visitVarInsn(ALOAD, MEMORY);
+            method.visitInsn(SWAP);
+            pending--;
+        }
+
+        /**
+         * Leaves the top value alone on the operand stack, with everything under it written to memory.
+         */
+        private void condition() {
+            ensure(1);
+            method.visitVarInsn(ISTORE, CONDITION);
+            pending--;
+            flush();
+            method.visitVarInsn(ILOAD, CONDITION);
+        }
+
+        /**
+         * Makes sure the top {@code count} values of the VM stack are on the operand stack, reading the missing ones
+         * from memory.
+         */
+        private void ensure(int count) {
+            if (pending >= count) {
+                return;
+            }
+            var missing = count - pending;
+            for (int j = pending - 1; j >= 0; j--) {
+                method.visitVarInsn(ISTORE, SCRATCH + j);
+            }
+            for (int j = missing; j > 0; j--) {
+                method.visitVarInsn(ALOAD, MEMORY);
+                method.visitVarInsn(ILOAD, SP);
+                constant(j);
+                method.visitInsn(ISUB);
+                method.visitInsn(SALOAD);
+            }
+            method.visitIincInsn(SP, -missing);
+            for (int j = 0; j < pending; j++) {
+                method.visitVarInsn(ILOAD, SCRATCH + j);
+            }
+            pending = count;
+        }
+
+        /**
+         * Writes every value waiting on the operand stack to memory.
+         */
+        private void flush() {
+            for (int j = pending - 1; j >= 0; j--) {
+                method.visitVarInsn(ISTORE, SCRATCH + j);
+            }
+            for (int j = 0; j < pending; j++) {
+                method.visitVarInsn(ALOAD, MEMORY);
+                method.visitVarInsn(ILOAD, SP);
+                constant(j);
+                method.visitInsn(IADD);
+                method.visitVarInsn(ILOAD, SCRATCH + j);
+                method.visitInsn(SASTORE);
+            }
+            if (pending > 0) {
+                method.visitIincInsn(SP, pending);
+            }
+            pending = 0;
+        }
+
+        private void storeSp() {
+            method.visitVarInsn(ALOAD, MEMORY);
+            method.visitInsn(ICONST_0);
+            method.visitVarInsn(ILOAD, SP);
+            method.visitInsn(SASTORE);
+        }
+
+        /**
+         * Counts down the budget and stops the program once it is spent.
+         */
+        private void consumeBudget() {
+            var left = new Label();
+            method.visitFieldInsn(GETSTATIC, CLASS, "budget", "J");
+            method.visitInsn(LCONST_1);
+            method.visitInsn(LSUB);
+            method.visitInsn(DUP2);
+            method.visitFieldInsn(PUTSTATIC, CLASS, "budget", "J");
+            method.visitInsn(LCONST_0);
+            method.visitInsn(LCMP);
+            method.visitJumpInsn(IFGE, left);
+            storeSp();
+            method.visitFieldInsn(GETSTATIC, OWNER, "OUT_OF_BUDGET", STOP);
+            method.visitInsn(ATHROW);
+            method.visitLabel(left);
+        }
+
+        /**
+         * Pushes the address of word {@code val} of {@code segment}.
+         */
+        private void segment(VMInstruction.Segment segment, int val) {
+            switch (segment) {
+                case LCL -> method.visitVarInsn(ILOAD, LCL);
+                case ARG -> method.visitVarInsn(ILOAD, ARG);
+                case THIS, THAT -> {
+                    method.visitVarInsn(ALOAD, MEMORY);
+                    constant(segment == VMInstruction.Segment.THIS ? 3 : 4);
+                    method.visitInsn(SALOAD);
+                }
+            }
+            if (val != 0) {
+                constant(val);
+                method.visitInsn(IADD);
+            }
+        }
+
+        private void constant(int value) {
+            if (value >= -1 && value <= 5) {
+                method.visitInsn(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                method.visitIntInsn(BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                method.visitIntInsn(SIPUSH, value);
+            } else {
+                method.visitLdcInsn(value);
+            }
+        }
+
+        private Label label(String name) {
+            return labels.computeIfAbsent(name, n -> new Label());
+        }
+
+        private int variable(String name) {
+            return statics.computeIfAbsent(name, n -> STATIC_BASE + statics.size());
+        }
+
+        /**
+         * The labels that some later jump in {@code body} goes back to, where loop iterations are counted.
+         */
+        private static Set<String> loopHeads(List<VMInstruction> body) {
+            var seen = new HashSet<String>();
+            var heads = new HashSet<String>();
+            for (var instruction : body) {
+                switch (instruction) {
+                    case VMInstruction.Label(var name) -> seen.add(name);
+                    case VMInstruction.GoTo(var name) when seen.contains(name) -> heads.add(name);
+                    case VMInstruction.IfGoTo(var name) when seen.contains(name) -> heads.add(name);
+                    default -> {
+                    }
+                }
+            }
+            return heads;
+        }
+    }
+
+    /**
+     * Compiles and runs a .vm file, or a directory of them starting at {@code Sys.init}, and prints how long it took
+     * and the top of its stack.
+     */
+    public static void main(String[] args) throws IOException, Lexer.ParseException {
+        var file = new File(args[0]);
+        var budget = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        var compiler = new VMCompiler(VMInterpreter.load(file), file.isDirectory());
+        var start = System.nanoTime();
+        compiler.run(budget);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var sp = compiler.peek(0);
+        System.out.printf("%s after %.3f seconds, SP %d, top of stack %d%n", compiler.halted() ? "Halted" : "Stopped",
+                seconds, sp, sp > STACK_BASE ? compiler.peek(sp - 1) : 0);
+    }
+}
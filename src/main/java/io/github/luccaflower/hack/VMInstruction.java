@@ -1,106 +1,274 @@
 package io.github.luccaflower.hack;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 public interface VMInstruction {
 
+    /**
+     * Appends the assembly for this instruction to {@code out}, one line per Hack instruction, each terminated by a
+     * newline. Implementations append constant fragments and digits directly rather than building Strings.
+     */
+    void emit(Appendable out) throws IOException;
+
+    /**
+     * Puts the words for this instruction straight into {@code out}: the same words that assembling the text from
+     * {@link #emit} gives, without generating or parsing that text. The fixed parts of each template are assembled
+     * once with {@link HackAssembler#fragment}. The default assembles the text.
+     */
+    default void assemble(HackAssembler out) {
+        try {
+            emit(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The number of ROM words the instruction's assembly occupies, which excludes label declarations.
+     */
+    static int words(VMInstruction instruction) {
+        return (int) render(instruction).lines().filter(l -> !l.startsWith("(")).count();
+    }
+
+    static String render(VMInstruction instruction) {
+        var builder = new StringBuilder();
+        try {
+            instruction.emit(builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    private static Appendable number(Appendable out, int n) throws IOException {
+        if (n < 0) {
+            out.append('-');
+            n = -n;
+        }
+        int divisor = 1;
+        while (divisor <= n / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + n / divisor % 10));
+        }
+        return out;
+    }
+
+    /**
+     * Shared instances of the instructions without operands, so that parsing and decoding do not allocate them anew.
+     */
+    final class Stateless {
+        static final Add ADD = new Add();
+        static final Subtract SUBTRACT = new Subtract();
+        static final Negative NEGATIVE = new Negative();
+        static final And AND = new And();
+        static final Or OR = new Or();
+        static final Not NOT = new Not();
+        static final Return RETURN = new Return();
+        static final Null NULL = new Null();
+
+        private Stateless() {
+        }
+    }
+
     record Pop() {
+        private static final String ASM = """
+                @SP
+                AM=M-1
+                D=M
+                """;
+        private static final short[] WORDS = HackAssembler.fragment(ASM);
+        private static final short[] STORE_M = HackAssembler.fragment("M=D\n");
+
+        static void emit(Appendable out) throws IOException {
+            out.append(ASM);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @SP
-                    AM=M-1
-                    D=M
-                    """;
+            return ASM;
         }
     }
 
     record Push() {
+        private static final String ASM = """
+                @SP
+                A=M
+                M=D
+                @SP
+                M=M+1
+                """;
+        private static final short[] WORDS = HackAssembler.fragment(ASM);
+        private static final short[] LOAD_M = HackAssembler.fragment("D=M\n" + ASM);
+
+        static void emit(Appendable out) throws IOException {
+            out.append(ASM);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @SP
-                    A=M
-                    M=D
-                    @SP
-                    M=M+1
-                    """;
+            return ASM;
         }
     }
     record Label(String name) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            emit(out, name);
+        }
+
+        static void emit(Appendable out, String name) throws IOException {
+            out.append('(').append(name).append(")\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.label(name);
+        }
+
         @Override
         public String toString() {
-            return """
-                    (%s)
-                    """.formatted(name);
+            return render(this);
         }
     }
 
     record GoTo(String name) implements VMInstruction {
+        private static final short[] JUMP = HackAssembler.fragment("0;JMP\n");
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            emit(out, name);
+        }
+
+        static void emit(Appendable out, String name) throws IOException {
+            out.append('@').append(name).append("\n0;JMP\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            assemble(out, name);
+        }
+
+        static void assemble(HackAssembler out, String name) {
+            out.symbol(name).code(JUMP);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%s
-                    0;JMP
-                    """.formatted(name);
+            return render(this);
         }
     }
 
     record IfGoTo(String name) implements VMInstruction {
+        private static final short[] JUMP = HackAssembler.fragment("D;JNE\n");
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Pop.emit(out);
+            out.append('@').append(name).append("\nD;JNE\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(Pop.WORDS).symbol(name).code(JUMP);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @%s
-                    D;JNE
-                    """.formatted(new Pop(), name);
+            return render(this);
         }
     }
     record PushConstant(short val) implements VMInstruction {
+        private static final short[] MINUS_ONE = HackAssembler.fragment("D=-1\n");
+        private static final short[] MIN_VALUE = HackAssembler.fragment("@32767\nD=!A\n");
+        private static final short[] NEGATE_A = HackAssembler.fragment("D=-A\n");
+        private static final short[] LOAD_A = HackAssembler.fragment("D=A\n");
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            emit(out, val);
+        }
+
+        static void emit(Appendable out, int val) throws IOException {
+            load(out, val);
+            Push.emit(out);
+        }
+
+        /**
+         * Loads {@code val} into D. A-instructions only take values up to 32767, so negative values, which constant
+         * folding can produce, are loaded through their negation or complement.
+         */
+        static void load(Appendable out, int val) throws IOException {
+            if (val == -1) {
+                out.append("D=-1\n");
+            } else if (val == Short.MIN_VALUE) {
+                out.append("@32767\nD=!A\n");
+            } else if (val < 0) {
+                number(out.append('@'), -val).append("\nD=-A\n");
+            } else {
+                number(out.append('@'), val).append("\nD=A\n");
+            }
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            if (val == -1) {
+                out.code(MINUS_ONE);
+            } else if (val == Short.MIN_VALUE) {
+                out.code(MIN_VALUE);
+            } else if (val < 0) {
+                out.constant(-val).code(NEGATE_A);
+            } else {
+                out.constant(val).code(LOAD_A);
+            }
+            out.code(Push.WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%d
-                    D=A
-                    %s
-                    """.formatted(val, new Push());
+            return render(this);
         }
     }
 
     record PushSegment(Segment segment, short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append('@'), val).append("\nD=A\n@").append(segment.name()).append("\nA=M+D\nD=M\n");
+            Push.emit(out);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.constant(val).code(segment.push);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%d
-                    D=A
-                    @%s
-                    A=M+D
-                    D=M
-                    %s
-                    """.formatted(val, segment, new Push());
+            return render(this);
         }
     }
 
     record PopSegment(Segment segment, short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            emit(out, segment, val);
+        }
+
+        static void emit(Appendable out, Segment segment, int val) throws IOException {
+            number(out.append('@'), val).append("\nD=A\n@").append(segment.name()).append("\nA=M+D\nD=A\n@R13\nM=D\n");
+            Pop.emit(out);
+            out.append("@R13\nA=M\nM=D\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.constant(val).code(segment.pop);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%d
-                    D=A
-                    @%s
-                    A=M+D
-                    D=A
-                    @R13
-                    M=D
-                    %s
-                    @R13
-                    A=M
-                    M=D
-                    """.formatted(val, segment, new Pop());
+            return render(this);
         }
     }
 
@@ -109,6 +277,10 @@ public interface VMInstruction {
         ARG,
         THIS,
         THAT;
+        private final short[] push = HackAssembler.fragment("D=A\n@" + name() + "\nA=M+D\nD=M\n" + Push.ASM);
+        private final short[] pop = HackAssembler.fragment("D=A\n@" + name() + "\nA=M+D\nD=A\n@R13\nM=D\n"
+                + Pop.ASM + "@R13\nA=M\nM=D\n");
+
         static Segment from(String name) {
             return switch (name.strip()) {
                 case "local" -> LCL;
@@ -121,344 +293,708 @@ public interface VMInstruction {
     }
 
     record PushTemp(short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append("@R"), 5 + val).append("\nD=M\n");
+            Push.emit(out);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            temp(out, val).code(Push.LOAD_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @R%d
-                    D=M
-                    %s
-                    """.formatted(5+val, new Push());
+            return render(this);
         }
     }
 
     record PopTemp(short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Pop.emit(out);
+            number(out.append("@R"), 5 + val).append("\nM=D\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            temp(out.code(Pop.WORDS), val).code(Pop.STORE_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @R%d
-                    M=D
-                    """.formatted(new Pop(), 5+val);
+            return render(this);
         }
     }
+    /**
+     * Loads {@code @R<5 + val>} into A. Only R0 to R15 are predefined, so anything past them is a variable, as it is in
+     * the text.
+     */
+    private static HackAssembler temp(HackAssembler out, int val) {
+        var register = 5 + val;
+        return register < 16 ? out.constant(register) : out.symbol("R" + register);
+    }
+
     record PushStatic(String name, short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append('@').append(name).append('.'), val).append("\nD=M\n");
+            Push.emit(out);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.symbol(name + "." + val).code(Push.LOAD_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%s.%d
-                    D=M
-                    %s
-                    """.formatted(name, val, new Push());
+            return render(this);
         }
     }
 
     record PopStatic(String name, short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Pop.emit(out);
+            number(out.append('@').append(name).append('.'), val).append("\nM=D\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(Pop.WORDS).symbol(name + "." + val).code(Pop.STORE_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @%s.%d
-                    M=D
-                    """.formatted(new Pop(), name, val);
+            return render(this);
         }
     }
 
     record PushPointer(short val) implements VMInstruction {
 
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append('@'), 3 + val).append("\nD=M\n");
+            Push.emit(out);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.constant(3 + val).code(Push.LOAD_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @%d
-                    D=M
-                    %s
-                    """.formatted(3+val, new Push());
+            return render(this);
         }
     }
 
     record PopPointer(short val) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Pop.emit(out);
+            number(out.append('@'), 3 + val).append("\nM=D\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(Pop.WORDS).constant(3 + val).code(Pop.STORE_M);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @%d
-                    M=D
-                    """.formatted(new Pop(), 3+val);
+            return render(this);
         }
     }
 
+    private static void binary(Appendable out, String operation) throws IOException {
+        Pop.emit(out);
+        out.append("@SP\nAM=M-1\n").append(operation).append("\n@SP\nM=M+1\n");
+    }
+
     record Add() implements VMInstruction {
+        private static final short[] WORDS = HackAssembler.fragment(render(new Add()));
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            binary(out, "M=M+D");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @SP
-                    AM=M-1
-                    M=M+D
-                    @SP
-                    M=M+1
-                    """.formatted(new Pop());
+            return render(this);
         }
     }
 
     record Subtract() implements VMInstruction {
+        private static final short[] WORDS = HackAssembler.fragment(render(new Subtract()));
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            binary(out, "M=M-D");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @SP
-                    AM=M-1
-                    M=M-D
-                    @SP
-                    M=M+1
-                    """.formatted(new Pop());
+            return render(this);
         }
     }
 
     record Negative() implements VMInstruction {
+        private static final String ASM = """
+                @SP
+                AM=M-1
+                D=!M
+                M=D+1
+                @SP
+                M=M+1
+                """;
+        private static final short[] WORDS = HackAssembler.fragment(ASM);
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            out.append(ASM);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @SP
-                    AM=M-1
-                    D=!M
-                    M=D+1
-                    @SP
-                    M=M+1
-                    """;
+            return ASM;
         }
     }
 
     record And() implements VMInstruction {
+        private static final short[] WORDS = HackAssembler.fragment(render(new And()));
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            binary(out, "M=M&D");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @SP
-                    AM=M-1
-                    M=M&D
-                    @SP
-                    M=M+1
-                    """.formatted(new Pop());
+            return render(this);
         }
     }
 
     record Or() implements VMInstruction {
+        private static final short[] WORDS = HackAssembler.fragment(render(new Or()));
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            binary(out, "M=M|D");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * Pops two operands and pushes -1 if {@code jump} holds for their difference, otherwise 0. The labels are made
+     * unique by {@code count} within the translation unit named by {@code scope}.
+     */
+    private static void comparison(Appendable out, String scope, Comparison comparison, int count)
+            throws IOException {
+        var kind = comparison.label;
+        var jump = comparison.jump;
+        Pop.emit(out);
+        out.append("@R13\nM=D\n");
+        Pop.emit(out);
+        out.append("@R13\nD=D-M\n");
+        number(out.append('@').append(scope).append('$').append(kind).append('_'), count)
+                .append("\nD;").append(jump).append('\n');
+        number(out.append('@').append(scope).append("$NOT_").append(kind).append('_'), count).append("\n0;JMP\n");
+        number(out.append('(').append(scope).append('$').append(kind).append('_'), count).append(")\nD=-1\n");
+        number(out.append('@').append(scope).append("$END_").append(kind).append('_'), count).append("\n0;JMP\n");
+        number(out.append('(').append(scope).append("$NOT_").append(kind).append('_'), count).append(")\nD=0\n");
+        number(out.append('(').append(scope).append("$END_").append(kind).append('_'), count).append(")\n");
+        Push.emit(out);
+    }
+
+    private static void comparison(HackAssembler out, String scope, Comparison comparison, int count) {
+        var kind = comparison.label;
+        var holds = scope + "$" + kind + "_" + count;
+        var fails = scope + "$NOT_" + kind + "_" + count;
+        var end = scope + "$END_" + kind + "_" + count;
+        out.code(Comparison.DIFFERENCE).symbol(holds).code(comparison.test).symbol(fails).code(GoTo.JUMP)
+                .label(holds).code(Comparison.TRUE).symbol(end).code(GoTo.JUMP)
+                .label(fails).code(Comparison.FALSE)
+                .label(end).code(Push.WORDS);
+    }
+
+    enum Comparison {
+        EQ("EQUAL", "JEQ"),
+        GT("GT", "JGT"),
+        LT("LT", "JLT");
+        private static final short[] DIFFERENCE = HackAssembler.fragment(Pop.ASM + "@R13\nM=D\n" + Pop.ASM
+                + "@R13\nD=D-M\n");
+        private static final short[] TRUE = HackAssembler.fragment("D=-1\n");
+        private static final short[] FALSE = HackAssembler.fragment("D=0\n");
+        private static final short[] ROUTINE_DIFFERENCE = HackAssembler.fragment("@R15\nM=D\n" + Pop.ASM
+                + "A=A-1\nD=M-D\nM=-1\n");
+        private static final short[] ROUTINE_FALSE = HackAssembler.fragment("@SP\nA=M-1\nM=0\n");
+        private static final short[] ROUTINE_RETURN = HackAssembler.fragment("@R15\nA=M\n0;JMP\n");
+        private final String label;
+        private final String jump;
+        private final short[] test;
+
+        Comparison(String label, String jump) {
+            this.label = label;
+            this.jump = jump;
+            this.test = HackAssembler.fragment("D;" + jump + "\n");
+        }
+
+        String routine() {
+            return "$cmp." + name();
+        }
+
+        String label() {
+            return label;
+        }
+
+        String jump() {
+            return jump;
+        }
+    }
+
+    /**
+     * A comparison that jumps to the shared {@link ComparisonRoutine} for its kind with the return address in D,
+     * instead of inlining the comparison.
+     */
+    record CompareCall(Comparison comparison, String scope, int count) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append('@').append(scope).append("$RET_").append(comparison.label).append('_'), count)
+                    .append("\nD=A\n");
+            GoTo.emit(out, comparison.routine());
+            number(out.append('(').append(scope).append("$RET_").append(comparison.label).append('_'), count)
+                    .append(")\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            var returnLabel = scope + "$RET_" + comparison.label + "_" + count;
+            out.symbol(returnLabel).code(PushConstant.LOAD_A);
+            GoTo.assemble(out, comparison.routine());
+            out.label(returnLabel);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * Pops two operands, replaces them with -1 if the comparison holds and 0 otherwise, and jumps to the return
+     * address that the caller left in D.
+     */
+    record ComparisonRoutine(Comparison comparison) implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            var routine = comparison.routine();
+            Label.emit(out, routine);
+            out.append("@R15\nM=D\n");
+            Pop.emit(out);
+            out.append("A=A-1\nD=M-D\nM=-1\n@").append(routine).append(".end\nD;").append(comparison.jump)
+                    .append("\n@SP\nA=M-1\nM=0\n(").append(routine).append(".end)\n@R15\nA=M\n0;JMP\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            var routine = comparison.routine();
+            out.label(routine).code(Comparison.ROUTINE_DIFFERENCE).symbol(routine + ".end").code(comparison.test)
+                    .code(Comparison.ROUTINE_FALSE).label(routine + ".end").code(Comparison.ROUTINE_RETURN);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    record Equal(String scope, int count) implements VMInstruction{
+        @Override
+        public void emit(Appendable out) throws IOException {
+            comparison(out, scope, Comparison.EQ, count);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            comparison(out, scope, Comparison.EQ, count);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+    record GreaterThan(String scope, int count) implements VMInstruction{
+        @Override
+        public void emit(Appendable out) throws IOException {
+            comparison(out, scope, Comparison.GT, count);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            comparison(out, scope, Comparison.GT, count);
+        }
+
         @Override
         public String toString() {
-            return """
-                    %s
-                    @SP
-                    AM=M-1
-                    M=M|D
-                    @SP
-                    M=M+1
-                    """.formatted(new Pop());
-        }
-    }
-
-    record Equal(int count) implements VMInstruction{
-        @Override
-        public String toString() {
-            return """
-                    %s
-                    @R13
-                    M=D
-                    %s
-                    @R13
-                    D=D-M
-                    @EQUAL_{COUNT}
-                    D;JEQ
-                    @NOT_EQUAL_{COUNT}
-                    0;JMP
-                    (EQUAL_{COUNT})
-                    D=-1
-                    @END_EQUAL_{COUNT}
-                    0;JMP
-                    (NOT_EQUAL_{COUNT})
-                    D=0
-                    (END_EQUAL_{COUNT})
-                    %s
-                    """.replace("{COUNT}", String.valueOf(count))
-                    .formatted(new Pop(), new Pop(), new Push());
-        }
-    }
-    record GreaterThan(int count) implements VMInstruction{
-        @Override
-        public String toString() {
-            return """
-                    %s
-                    @R13
-                    M=D
-                    %s
-                    @R13
-                    D=D-M
-                    @GT_{COUNT}
-                    D;JGT
-                    @NOT_GT_{COUNT}
-                    0;JMP
-                    (GT_{COUNT})
-                    D=-1
-                    @END_GT_{COUNT}
-                    0;JMP
-                    (NOT_GT_{COUNT})
-                    D=0
-                    (END_GT_{COUNT})
-                    %s
-                    """.replace("{COUNT}", String.valueOf(count))
-                    .formatted(new Pop(), new Pop(), new Push());
-        }
-    }
-    record LessThan(int count) implements VMInstruction{
-        @Override
-        public String toString() {
-            return """
-                    %s
-                    @R13
-                    M=D
-                    %s
-                    @R13
-                    D=D-M
-                    @LT_{COUNT}
-                    D;JLT
-                    @NOT_LT_{COUNT}
-                    0;JMP
-                    (LT_{COUNT})
-                    D=-1
-                    @END_LT_{COUNT}
-                    0;JMP
-                    (NOT_LT_{COUNT})
-                    D=0
-                    (END_LT_{COUNT})
-                    %s
-                    """.replace("{COUNT}", String.valueOf(count))
-                    .formatted(new Pop(), new Pop(), new Push());
+            return render(this);
+        }
+    }
+    record LessThan(String scope, int count) implements VMInstruction{
+        @Override
+        public void emit(Appendable out) throws IOException {
+            comparison(out, scope, Comparison.LT, count);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            comparison(out, scope, Comparison.LT, count);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
         }
     }
     record Not() implements VMInstruction {
+        private static final String ASM = """
+                @SP
+                AM=M-1
+                M=!M
+                @SP
+                M=M+1
+                """;
+        private static final short[] WORDS = HackAssembler.fragment(ASM);
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            out.append(ASM);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
+
         @Override
         public String toString() {
-            return """
-                    @SP
-                    AM=M-1
-                    M=!M
-                    @SP
-                    M=M+1
-                    """;
+            return ASM;
         }
     }
 
     record DefineFunction(String name, int locals) implements VMInstruction {
+        private static final short[] ZERO_FIRST = HackAssembler.fragment("@SP\nA=M\nM=0\n");
+        private static final short[] ZERO_NEXT = HackAssembler.fragment("A=A+1\nM=0\n");
+        private static final short[] ADVANCE_SP = HackAssembler.fragment("D=A+1\n@SP\nM=D\n");
+
+        /**
+         * Pushes a zero for each local, as the VM specification requires, so the locals sit between LCL and SP and
+         * are not overwritten by the function's own pushes.
+         */
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Label.emit(out, name);
+            if (locals == 0) {
+                return;
+            }
+            out.append("@SP\nA=M\nM=0\n");
+            for (int i = 1; i < locals; i++) {
+                out.append("A=A+1\nM=0\n");
+            }
+            out.append("D=A+1\n@SP\nM=D\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.label(name);
+            if (locals == 0) {
+                return;
+            }
+            out.code(ZERO_FIRST);
+            for (int i = 1; i < locals; i++) {
+                out.code(ZERO_NEXT);
+            }
+            out.code(ADVANCE_SP);
+        }
+
         @Override
         public String toString() {
-            var label = new Label(name);
-            return label.toString()
-                    .concat("\n")
-                    .concat(IntStream.range(0, locals)
-                            .mapToObj(i -> Stream.of(new PushConstant((short) 0), new PopSegment(Segment.LCL, (short) i)))
-                            .flatMap(s -> s)
-                            .map(VMInstruction::toString)
-                            .collect(Collectors.joining("\n")));
+            return render(this);
         }
     }
 
     record Return() implements VMInstruction {
+        private static final String SAVE_RETURN_ADDRESS = """
+                @5
+                D=A
+                @LCL
+                A=M-D
+                D=M
+                @R14
+                M=D
+                """;
+        private static final String REPOSITION_SP = """
+                @ARG
+                A=M+1
+                D=A
+                @SP
+                M=D
+                """;
+        private static final String RESTORE_SEGMENT_POINTERS = """
+                @LCL
+                A=M-1
+                D=M
+                @THAT
+                M=D
+                @2
+                D=A
+                @LCL
+                A=M-D
+                D=M
+                @THIS
+                M=D
+                @3
+                D=A
+                @LCL
+                A=M-D
+                D=M
+                @ARG
+                M=D
+                @4
+                D=A
+                @LCL
+                A=M-D
+                D=M
+                @LCL
+                M=D
+                """;
+        private static final String GOTO_RETURN = """
+                @R14
+                A=M
+                0;JMP
+                """;
+        private static final short[] WORDS = HackAssembler.fragment(render(new Return()));
+
         @Override
-        public String toString() {
-            var returnVal = new PopSegment(Segment.ARG, (short) 0).toString();
-            var repositionSP = """
-                    @ARG
-                    A=M+1
-                    D=A
-                    @SP
-                    M=D
-                    """;
-            var saveReturnAddress = """
-                    @5
-                    D=A
-                    @LCL
-                    A=M-D
-                    D=M
-                    @R14
-                    M=D
-                    """;
-            var restoreSegmentPointers = """
-                    @LCL
-                    A=M-1
-                    D=M
-                    @THAT
-                    M=D
-                    @2
-                    D=A
-                    @LCL
-                    A=M-D
-                    D=M
-                    @THIS
-                    M=D
-                    @3
-                    D=A
-                    @LCL
-                    A=M-D
-                    D=M
-                    @ARG
-                    M=D
-                    @4
-                    D=A
-                    @LCL
-                    A=M-D
-                    D=M
-                    @LCL
-                    M=D
-                    """;
-            var gotoReturn = """
-                    @R14
-                    A=M
-                    0;JMP
-                    """;
-            return String.join("\n", saveReturnAddress, returnVal, repositionSP, restoreSegmentPointers, gotoReturn);
+        public void emit(Appendable out) throws IOException {
+            out.append(SAVE_RETURN_ADDRESS);
+            PopSegment.emit(out, Segment.ARG, 0);
+            out.append(REPOSITION_SP).append(RESTORE_SEGMENT_POINTERS).append(GOTO_RETURN);
         }
 
+        @Override
+        public void assemble(HackAssembler out) {
+            out.code(WORDS);
+        }
 
+        @Override
+        public String toString() {
+            return render(this);
+        }
     }
 
     record CallFunction(String name, int args, String returnLabel) implements VMInstruction {
+        private static final String SAVE_FRAME = """
+                @LCL
+                D=M
+                %1$s@ARG
+                D=M
+                %1$s@THIS
+                D=M
+                %1$s@THAT
+                D=M
+                %1$s""".formatted(new Push());
+        private static final short[] PUSH_FRAME = HackAssembler.fragment("D=A\n" + Push.ASM + SAVE_FRAME
+                + "@SP\nD=M\n");
+        private static final short[] REPOSITION = HackAssembler.fragment("D=D-A\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n");
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            out.append('@').append(returnLabel).append("\nD=A\n");
+            Push.emit(out);
+            out.append(SAVE_FRAME);
+            number(out.append("@SP\nD=M\n@"), args + 5).append("\nD=D-A\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n");
+            GoTo.emit(out, name);
+            Label.emit(out, returnLabel);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.symbol(returnLabel).code(PUSH_FRAME).constant(args + 5).code(REPOSITION);
+            GoTo.assemble(out, name);
+            out.label(returnLabel);
+        }
+
         @Override
         public String toString() {
-            var saveReturn = """
-                    @%s
-                    D=A
-                    %s
-                    """.formatted(returnLabel, new Push());
-            var saveFrame = """
-                    @LCL
-                    D=M
-                    %s
-                    @ARG
-                    D=M
-                    %s
-                    @THIS
-                    D=M
-                    %s
-                    @THAT
-                    D=M
-                    %s
-                    """.formatted(new Push(), new Push(), new Push(), new Push());
-            var reposition = """
-                    @SP
-                    D=M
-                    @%d
-                    D=D-A
-                    @ARG
-                    M=D
-                    @SP
-                    D=M
-                    @LCL
-                    M=D
-                    """.formatted(args + 5);
-            var goTo = String.join("\n",  new GoTo(name).toString(), new Label(returnLabel).toString());
-            return String.join("\n", saveReturn, saveFrame, reposition, goTo);
+            return render(this);
         }
     }
+    /**
+     * A call that leaves the argument count in R13, the callee address in R14 and the return address in D, and jumps
+     * to the shared {@link CallRoutine} to build the frame.
+     */
+    record SharedCall(String name, int args, String returnLabel) implements VMInstruction {
+        private static final short[] STORE_ARGS = HackAssembler.fragment("D=A\n@R13\nM=D\n");
+        private static final short[] STORE_CALLEE = HackAssembler.fragment("D=A\n@R14\nM=D\n");
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            number(out.append('@'), args).append("\nD=A\n@R13\nM=D\n@").append(name).append("\nD=A\n@R14\nM=D\n@")
+                    .append(returnLabel).append("\nD=A\n");
+            GoTo.emit(out, CallRoutine.NAME);
+            Label.emit(out, returnLabel);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.constant(args).code(STORE_ARGS).symbol(name).code(STORE_CALLEE).symbol(returnLabel)
+                    .code(PushConstant.LOAD_A);
+            GoTo.assemble(out, CallRoutine.NAME);
+            out.label(returnLabel);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * Pushes the return address in D and the caller's segment pointers, repositions ARG and LCL for the R13 arguments
+     * and jumps to the callee in R14.
+     */
+    record CallRoutine() implements VMInstruction {
+        static final String NAME = "$call";
+        private static final String ENTER = "@R13\nD=M\n@5\nD=D+A\n@SP\nD=M-D\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n"
+                + "@R14\nA=M\n0;JMP\n";
+        private static final short[] WORDS = HackAssembler.fragment(Push.ASM + CallFunction.SAVE_FRAME + ENTER);
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Label.emit(out, NAME);
+            Push.emit(out);
+            out.append(CallFunction.SAVE_FRAME).append(ENTER);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.label(NAME).code(WORDS);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * A return that jumps to the shared {@link ReturnRoutine} instead of restoring the caller's frame inline.
+     */
+    record SharedReturn() implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            GoTo.emit(out, ReturnRoutine.NAME);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            GoTo.assemble(out, ReturnRoutine.NAME);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * The body of {@link Return}, emitted once for every {@link SharedReturn} to jump to.
+     */
+    record ReturnRoutine() implements VMInstruction {
+        static final String NAME = "$return";
+
+        @Override
+        public void emit(Appendable out) throws IOException {
+            Label.emit(out, NAME);
+            new Return().emit(out);
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.label(NAME).code(Return.WORDS);
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
+    /**
+     * Parks the CPU in a loop, so that execution running off the end of the program does not fall into the shared
+     * routines placed after it.
+     */
+    record Halt() implements VMInstruction {
+        @Override
+        public void emit(Appendable out) throws IOException {
+            out.append("($halt)\n@$halt\n0;JMP\n");
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+            out.label("$halt");
+            GoTo.assemble(out, "$halt");
+        }
+
+        @Override
+        public String toString() {
+            return render(this);
+        }
+    }
+
     record Null() implements VMInstruction {
+        @Override
+        public void emit(Appendable out) {
+        }
+
+        @Override
+        public void assemble(HackAssembler out) {
+        }
+
         @Override
         public String toString() {
             return "";
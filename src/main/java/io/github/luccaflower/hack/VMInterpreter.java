@@ -0,0 +1,424 @@
+package io.github.luccaflower.hack;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Executes VM programs directly, with the stack, segments and statics in a {@code short[]} memory laid out as the
+ * translated code lays them out: SP, LCL, ARG, THIS and THAT at 0 to 4, temp at 5, statics from 16 in order of first
+ * use, and the stack from 256 with the same call frames. Only the return addresses in the frames differ, since they
+ * are positions in the interpreted program rather than in ROM.
+ * <p>
+ * The program is compiled to a flat {@code int[]} of opcodes and operands with labels and functions resolved, and
+ * common sequences are fused into single superinstructions: a push of a segment followed by adding or subtracting a
+ * constant, and a comparison or {@code not} followed by {@code if-goto}. Since {@code not} is bitwise, the fused
+ * {@code not; if-goto} jumps unless the value is exactly true (-1), not only when it is false.
+ */
+public class VMInterpreter {
+    private static final int WIDTH = 4;
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+    /**
+     * The return address of the bootstrap call, which halts the interpreter if {@code Sys.init} ever returns.
+     */
+    private static final int EXIT = -1;
+
+    private static final int PUSH_CONSTANT = 0;
+    private static final int PUSH_SEGMENT = 1;
+    private static final int POP_SEGMENT = 2;
+    private static final int PUSH_FIXED = 3;
+    private static final int POP_FIXED = 4;
+    private static final int ADD = 5;
+    private static final int SUBTRACT = 6;
+    private static final int NEGATIVE = 7;
+    private static final int AND = 8;
+    private static final int OR = 9;
+    private static final int NOT = 10;
+    private static final int EQUAL = 11;
+    private static final int GREATER_THAN = 12;
+    private static final int LESS_THAN = 13;
+    private static final int GOTO = 14;
+    private static final int IF_GOTO = 15;
+    private static final int FUNCTION = 16;
+    private static final int CALL = 17;
+    private static final int RETURN = 18;
+    private static final int PUSH_SEGMENT_ADD_CONSTANT = 19;
+    private static final int IF_EQUAL_GOTO = 20;
+    private static final int IF_GREATER_THAN_GOTO = 21;
+    private static final int IF_LESS_THAN_GOTO = 22;
+    private static final int IF_NOT_GOTO = 23;
+
+    private final short[] memory = new short[1 << 15];
+    private final int[] code;
+    private final int fused;
+    private int pc = 0;
+    private long executed = 0;
+    private boolean halted = false;
+
+    /**
+     * Compiles {@code program}. With {@code bootstrap}, execution starts with a call to {@code Sys.init}, as the
+     * translator starts a directory; otherwise it starts at the first instruction with an empty stack.
+     */
+    public VMInterpreter(Collection<? extends VMInstruction> program, boolean bootstrap) {
+        var compiler = new Compiler(List.copyOf(program));
+        code = compiler.code;
+        fused = compiler.fused;
+        memory[SP] = STACK_BASE;
+        if (bootstrap) {
+            var init = compiler.functions.get("Sys.init");
+            if (init == null) {
+                throw new IllegalArgumentException("No function Sys.init");
+            }
+            call(init, 0, EXIT);
+            pc = init;
+        }
+    }
+
+    private final class Compiler {
+        private final Map<String, Integer> labels = new HashMap<>();
+        private final Map<String, Integer> functions = new HashMap<>();
+        private final Map<String, Integer> statics = new HashMap<>();
+        private int[] code;
+        private int size = 0;
+        private int fused = 0;
+
+        private Compiler(List<? extends VMInstruction> program) {
+            var ops = new ArrayList<VMInstruction>();
+            for (var instruction : program) {
+                switch (instruction) {
+                    case VMInstruction.Label(var name) -> labels.put(name, ops.size());
+                    case VMInstruction.DefineFunction(var name, var locals) -> {
+                        functions.put(name, ops.size());
+                        ops.add(instruction);
+                    }
+                    case VMInstruction.Null n -> {
+                    }
+                    default -> ops.add(instruction);
+                }
+            }
+            if (ops.size() > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Program has more instructions than a return address can hold");
+            }
+            code = new int[ops.size() * WIDTH];
+            var starts = new boolean[ops.size() + 1];
+            labels.values().forEach(i -> starts[i] = true);
+            for (int i = 0; i < ops.size(); i++) {
+                var next = i + 1 < ops.size() && !starts[i + 1] ? ops.get(i + 1) : null;
+                var after = i + 2 < ops.size() && next != null && !starts[i + 2] ? ops.get(i + 2) : null;
+                var consumed = compile(ops.get(i), next, after);
+                for (int j = 1; j < consumed; j++) {
+                    emit(GOTO, i + consumed, 0, 0);
+                }
+                i += consumed - 1;
+            }
+        }
+
+        /**
+         * Compiles {@code instruction}, fused with the one or two after it where possible, and returns how many
+         * instructions it consumed. Consumed instructions still get a slot each, so that positions stay equal to
+         * instruction indices.
+         */
+        private int compile(VMInstruction instruction, VMInstruction next, VMInstruction after) {
+            switch (instruction) {
+                case VMInstruction.PushSegment(var segment, var val)
+                        when next instanceof VMInstruction.PushConstant(var constant)
+                        && (after instanceof VMInstruction.Add || after instanceof VMInstruction.Subtract) -> {
+                    emit(PUSH_SEGMENT_ADD_CONSTANT, pointer(segment), val,
+                            after instanceof VMInstruction.Add ? constant : -constant);
+                    fused++;
+                    return 3;
+                }
+                case VMInstruction.Equal e when next instanceof VMInstruction.IfGoTo(var name) -> {
+                    emit(IF_EQUAL_GOTO, label(name), 0, 0);
+                    fused++;
+                    return 2;
+                }
+                case VMInstruction.GreaterThan g when next instanceof VMInstruction.IfGoTo(var name) -> {
+                    emit(IF_GREATER_THAN_GOTO, label(name), 0, 0);
+                    fused++;
+                    return 2;
+                }
+                case VMInstruction.LessThan l when next instanceof VMInstruction.IfGoTo(var name) -> {
+                    emit(IF_LESS_THAN_GOTO, label(name), 0, 0);
+                    fused++;
+                    return 2;
+                }
+                case VMInstruction.Not n when next instanceof VMInstruction.IfGoTo(var name) -> {
+                    emit(IF_NOT_GOTO, label(name), 0, 0);
+                    fused++;
+                    return 2;
+                }
+                case VMInstruction.PushConstant(var val) -> emit(PUSH_CONSTANT, val, 0, 0);
+                case VMInstruction.PushSegment(var segment, var val) -> emit(PUSH_SEGMENT, pointer(segment), val, 0);
+                case VMInstruction.PopSegment(var segment, var val) -> emit(POP_SEGMENT, pointer(segment), val, 0);
+                case VMInstruction.PushTemp(var val) -> emit(PUSH_FIXED, 5 + val, 0, 0);
+                case VMInstruction.PopTemp(var val) -> emit(POP_FIXED, 5 + val, 0, 0);
+                case VMInstruction.PushPointer(var val) -> emit(PUSH_FIXED, THIS + val, 0, 0);
+                case VMInstruction.PopPointer(var val) -> emit(POP_FIXED, THIS + val, 0, 0);
+                case VMInstruction.PushStatic(var name, var val) -> emit(PUSH_FIXED, variable(name + '.' + val), 0, 0);
+                case VMInstruction.PopStatic(var name, var val) -> emit(POP_FIXED, variable(name + '.' + val), 0, 0);
+                case VMInstruction.Add a -> emit(ADD, 0, 0, 0);
+                case VMInstruction.Subtract s -> emit(SUBTRACT, 0, 0, 0);
+                case VMInstruction.Negative n -> emit(NEGATIVE, 0, 0, 0);
+                case VMInstruction.And a -> emit(AND, 0, 0, 0);
+                case VMInstruction.Or o -> emit(OR, 0, 0, 0);
+                case VMInstruction.Not n -> emit(NOT, 0, 0, 0);
+                case VMInstruction.Equal e -> emit(EQUAL, 0, 0, 0);
+                case VMInstruction.GreaterThan g -> emit(GREATER_THAN, 0, 0, 0);
+                case VMInstruction.LessThan l -> emit(LESS_THAN, 0, 0, 0);
+                case VMInstruction.GoTo(var name) -> emit(GOTO, label(name), 0, 0);
+                case VMInstruction.IfGoTo(var name) -> emit(IF_GOTO, label(name), 0, 0);
+                case VMInstruction.DefineFunction(var name, var locals) -> emit(FUNCTION, locals, 0, 0);
+                case VMInstruction.CallFunction(var name, var args, var returnLabel) -> {
+                    var target = functions.get(name);
+                    if (target == null) {
+                        throw new IllegalArgumentException("Unknown function " + name);
+                    }
+                    emit(CALL, target, args, 0);
+                }
+                case VMInstruction.Return r -> emit(RETURN, 0, 0, 0);
+                default -> throw new IllegalArgumentException("Cannot interpret " + instruction);
+            }
+            return 1;
+        }
+
+        private void emit(int op, int a, int b, int c) {
+            code[size++] = op;
+            code[size++] = a;
+            code[size++] = b;
+            code[size++] = c;
+        }
+
+        private int label(String name) {
+            var target = labels.get(name);
+            if (target == null) {
+                throw new IllegalArgumentException("Unknown label " + name);
+            }
+            return target;
+        }
+
+        private int variable(String name) {
+            return statics.computeIfAbsent(name, n -> STATIC_BASE + statics.size());
+        }
+
+        private static int pointer(VMInstruction.Segment segment) {
+            return LCL + segment.ordinal();
+        }
+    }
+
+    /**
+     * Executes at most {@code budget} instructions and returns how many were executed. A superinstruction counts as
+     * one.
+     */
+    public long run(long budget) {
+        var memory = this.memory;
+        var code = this.code;
+        var end = code.length / WIDTH;
+        int pc = this.pc;
+        int sp = memory[SP];
+        long count = 0;
+        var halted = this.halted;
+        while (count < budget && !halted) {
+            if (pc >= end || pc < 0) {
+                halted = true;
+                break;
+            }
+            count++;
+            var i = pc * WIDTH;
+            var a = code[i + 1];
+            pc++;
+            switch (code[i]) {
+                case PUSH_CONSTANT -> memory[sp++] = (short) a;
+                case PUSH_SEGMENT -> memory[sp++] = memory[memory[a] + code[i + 2]];
+                case POP_SEGMENT -> memory[memory[a] + code[i + 2]] = memory[--sp];
+                case PUSH_FIXED -> memory[sp++] = memory[a];
+                case POP_FIXED -> memory[a] = memory[--sp];
+                case ADD -> {
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] + memory[sp]);
+                }
+                case SUBTRACT -> {
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] - memory[sp]);
+                }
+                case NEGATIVE -> memory[sp - 1] = (short) -memory[sp - 1];
+                case AND -> {
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] & memory[sp]);
+                }
+                case OR -> {
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] | memory[sp]);
+                }
+                case NOT -> memory[sp - 1] = (short) ~memory[sp - 1];
+                case EQUAL -> {
+                    sp--;
+                    memory[sp - 1] = (short) ((short) (memory[sp - 1] - memory[sp]) == 0 ? -1 : 0);
+                }
+                case GREATER_THAN -> {
+                    sp--;
+                    memory[sp - 1] = (short) ((short) (memory[sp - 1] - memory[sp]) > 0 ? -1 : 0);
+                }
+                case LESS_THAN -> {
+                    sp--;
+                    memory[sp - 1] = (short) ((short) (memory[sp - 1] - memory[sp]) < 0 ? -1 : 0);
+                }
+                case GOTO -> {
+                    halted = a == pc - 1;
+                    pc = a;
+                }
+                case IF_GOTO -> {
+                    if (memory[--sp] != 0) {
+                        pc = a;
+                    }
+                }
+                case FUNCTION -> {
+                    for (int l = 0; l < a; l++) {
+                        memory[sp++] = 0;
+                    }
+                }
+                case CALL -> {
+                    memory[SP] = (short) sp;
+                    call(a, code[i + 2], pc);
+                    sp = memory[SP];
+                    pc = a;
+                }
+                case RETURN -> {
+                    var frame = memory[LCL];
+                    var returnAddress = memory[frame - 5];
+                    memory[memory[ARG]] = memory[sp - 1];
+                    sp = memory[ARG] + 1;
+                    memory[THAT] = memory[frame - 1];
+                    memory[THIS] = memory[frame - 2];
+                    memory[ARG] = memory[frame - 3];
+                    memory[LCL] = memory[frame - 4];
+                    pc = returnAddress;
+                }
+                case PUSH_SEGMENT_ADD_CONSTANT -> memory[sp++] = (short) (memory[memory[a] + code[i + 2]] + code[i + 3]);
+                case IF_EQUAL_GOTO -> {
+                    sp -= 2;
+                    if ((short) (memory[sp] - memory[sp + 1]) == 0) {
+                        pc = a;
+                    }
+                }
+                case IF_GREATER_THAN_GOTO -> {
+                    sp -= 2;
+                    if ((short) (memory[sp] - memory[sp + 1]) > 0) {
+                        pc = a;
+                    }
+                }
+                case IF_LESS_THAN_GOTO -> {
+                    sp -= 2;
+                    if ((short) (memory[sp] - memory[sp + 1]) < 0) {
+                        pc = a;
+                    }
+                }
+                case IF_NOT_GOTO -> {
+                    if (memory[--sp] != -1) {
+                        pc = a;
+                    }
+                }
+                default -> throw new IllegalStateException("Bad opcode " + code[i]);
+            }
+        }
+        memory[SP] = (short) sp;
+        this.pc = pc;
+        this.halted = halted;
+        executed += count;
+        return count;
+    }
+
+    /**
+     * Pushes a call frame as {@link VMInstruction.CallFunction} does and points ARG and LCL at the callee's.
+     */
+    private void call(int target, int args, int returnAddress) {
+        int sp = memory[SP];
+        memory[sp++] = (short) returnAddress;
+        memory[sp++] = memory[LCL];
+        memory[sp++] = memory[ARG];
+        memory[sp++] = memory[THIS];
+        memory[sp++] = memory[THAT];
+        memory[ARG] = (short) (sp - 5 - args);
+        memory[LCL] = (short) sp;
+        memory[SP] = (short) sp;
+    }
+
+    public boolean halted() {
+        return halted;
+    }
+
+    /**
+     * The total number of instructions executed, counting each superinstruction once.
+     */
+    public long executed() {
+        return executed;
+    }
+
+    /**
+     * The number of superinstructions the program was compiled to.
+     */
+    public int fused() {
+        return fused;
+    }
+
+    public short peek(int address) {
+        return memory[address];
+    }
+
+    public void poke(int address, short value) {
+        memory[address] = value;
+    }
+
+    /**
+     * Parses a .vm file, or every .vm file in a directory in name order, into one program.
+     */
+    static PackedProgram load(File file) throws IOException, Lexer.ParseException {
+        var sources = file.isDirectory()
+                ? Arrays.stream(Objects.requireNonNull(file.listFiles()))
+                .filter(f -> f.getName().endsWith(".vm"))
+                .sorted(Comparator.comparing(File::getName))
+                .toList()
+                : List.of(file);
+        var parser = new FastVMParser();
+        var program = new PackedProgram();
+        for (var source : sources) {
+            try (var input = new FileReader(source, StandardCharsets.UTF_8)) {
+                parser.parse(source.getName().replace(".vm", ""), input, program);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Interprets a .vm file, or a directory of them starting at {@code Sys.init}, and prints how far it got and the
+     * top of its stack.
+     */
+    public static void main(String[] args) throws IOException, Lexer.ParseException {
+        var file = new File(args[0]);
+        var budget = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        var interpreter = new VMInterpreter(load(file), file.isDirectory());
+        var start = System.nanoTime();
+        interpreter.run(budget);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var sp = interpreter.peek(SP);
+        System.out.printf("%s after %d instructions (%.0f million per second, %d superinstructions), SP %d, "
+                        + "top of stack %d%n", interpreter.halted() ? "Halted" : "Stopped", interpreter.executed(),
+                interpreter.executed() / seconds / 1e6, interpreter.fused(), sp,
+                sp > STACK_BASE ? interpreter.peek(sp - 1) : 0);
+    }
+}
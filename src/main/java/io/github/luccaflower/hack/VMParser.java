@@ -1,114 +1,214 @@
 package io.github.luccaflower.hack;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static io.github.luccaflower.hack.Lexer.*;
 import static io.github.luccaflower.hack.Lexer.string;
 
-public class VMParser implements Lexer<Queue<VMInstruction>> {
+/**
+ * The reference grammar for VM code, built from {@link Lexer} combinators. The grammar is compiled once and shared by
+ * every instance. It yields {@link Step}s rather than instructions, and each parse resolves them in order against a
+ * {@link Context} of its own that holds the unit name, so one instance can parse many units at once from different
+ * threads.
+ */
+public class VMParser implements InstructionParser {
     public static final String LABEL_PATTERN = "[a-zA-Z._\\-0-9]+";
-    private int eqCount = 0;
-    private int ltCount = 0;
-    private int gtCount = 0;
-    private FunctionState functionState = new NoFunction();
-    private final Lexer<Queue<VMInstruction>> lexer;
-    private final Map<String, Integer> returnLabels = new HashMap<>();
+    private static final String SEGMENT_PATTERN = "local|argument|this|that";
+    private static final String ARITHMETIC_PATTERN = "(add|sub|neg|eq|lt|gt|and|or|not)\\b";
+    private static final Lexer<String> SPACE = regex("[ \\t]+");
+    private static final Lexer<Step> INSTRUCTION = instruction();
+    private static final Lexer<Queue<Step>> PROGRAM = regex("\\s*").skipAnd(INSTRUCTION)
+            .repeating()
+            .andSkip(regex("\\s*"))
+            .andSkip(eof());
+    private static final Lexer<Step> LINE = regex("[ \\t]*").skipAnd(INSTRUCTION).andSkip(eof());
+    private final String name;
+
+    /**
+     * A parser shared between units, which are named on each call.
+     */
+    public VMParser() {
+        this(null);
+    }
+
+    /**
+     * A parser whose methods without a name parameter parse the unit {@code name}.
+     */
     public VMParser(String name) {
-        var comment = regex("\\s*").skipAnd(string("//")).skipAnd(regex(".*").andSkip(eol()))
-                .<VMInstruction>map(ignored -> new VMInstruction.Null());
-        lexer = string("push ").skipAnd(string("constant ").skipAnd(number())
-                .<VMInstruction>map(VMInstruction.PushConstant::new)
-                .or(regex("[a-z]+\\s")
-                        .map(VMInstruction.Segment::from)
-                        .andThen(number())
-                        .map(p -> new VMInstruction.PushSegment(p.left(), p.right())))
-                .or(string("temp ")
-                        .skipAnd(number())
-                        .map(VMInstruction.PushTemp::new))
-                .or(string("static ")
-                        .skipAnd(number())
-                        .map(i -> new VMInstruction.PushStatic(name, i)))
-                .or(string("pointer ")
-                        .skipAnd(number())
-                        .map(VMInstruction.PushPointer::new)))
-                .or(string("pop ").skipAnd(regex("[a-z]+\\s")
-                        .map(VMInstruction.Segment::from)
-                        .andThen(number())
-                        .<VMInstruction>map(p1 -> new VMInstruction.PopSegment(p1.left(), p1.right()))
-                        .or(string("temp ")
+        this.name = name;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Result<Queue<VMInstruction>> tryParse(String name, CharSequence in, int offset) {
+        return switch (PROGRAM.tryParse(in, offset)) {
+            case Parsed<Queue<Step>> parsed -> {
+                var context = new Context(name);
+                var instructions = new ArrayDeque<VMInstruction>(parsed.parsed().size());
+                for (var step : parsed.parsed()) {
+                    instructions.add(step.resolve(context));
+                }
+                yield new Parsed<>(instructions, parsed.offset());
+            }
+            case Failure<Queue<Step>> failure -> failure.retype();
+        };
+    }
+
+    @Override
+    public void parse(String name, Reader in, Consumer<? super VMInstruction> sink, IntConsumer lines)
+            throws IOException, ParseException {
+        var reader = in instanceof BufferedReader buffered ? buffered : new BufferedReader(in);
+        var context = new Context(name);
+        var lineNumber = 0;
+        String text;
+        while ((text = reader.readLine()) != null) {
+            lineNumber++;
+            if (text.isBlank()) {
+                continue;
+            }
+            switch (LINE.tryParse(text)) {
+                case Parsed<Step> parsed -> {
+                    var instruction = parsed.parsed().resolve(context);
+                    if (!(instruction instanceof VMInstruction.Null)) {
+                        lines.accept(lineNumber);
+                        sink.accept(instruction);
+                    }
+                }
+                case Failure<Step> failure ->
+                        throw new ParseException("Line %d: %s".formatted(lineNumber, failure.message()));
+            }
+        }
+    }
+
+    private static Lexer<Step> instruction() {
+        var comment = string("//").skipAnd(regex("[^\\n]*").andSkip(eol()))
+                .map(ignored -> fixed(VMInstruction.Stateless.NULL));
+        var lineEnd = regex("[ \\t\\r]*(//[^\\n]*)?").andSkip(eol());
+        return choice(choice(
+                keyword("push").skipAnd(choice(
+                        keyword("constant")
+                                .skipAnd(number())
+                                .map(i -> fixed(new VMInstruction.PushConstant(i))),
+                        segment()
+                                .andThen(number())
+                                .map(p -> fixed(new VMInstruction.PushSegment(p.left(), p.right()))),
+                        keyword("temp")
+                                .skipAnd(number())
+                                .map(i -> fixed(new VMInstruction.PushTemp(i))),
+                        keyword("static")
+                                .skipAnd(number())
+                                .<Step>map(i -> c -> new VMInstruction.PushStatic(c.file, i)),
+                        keyword("pointer")
                                 .skipAnd(number())
-                                .map(VMInstruction.PopTemp::new))
-                        .or(string("static ")
+                                .map(i -> fixed(new VMInstruction.PushPointer(i))))),
+                keyword("pop").skipAnd(choice(
+                        segment()
+                                .andThen(number())
+                                .map(p -> fixed(new VMInstruction.PopSegment(p.left(), p.right()))),
+                        keyword("temp")
                                 .skipAnd(number())
-                                .map(i1 -> new VMInstruction.PopStatic(name, i1)))
-                        .or(string("pointer ")
+                                .map(i -> fixed(new VMInstruction.PopTemp(i))),
+                        keyword("static")
                                 .skipAnd(number())
-                                .map(VMInstruction.PopPointer::new))))
-                .or(regex("\\w{2,3}")
-                        .map(this::arithmeticFrom))
-                .or(string("label ")
+                                .<Step>map(i -> c -> new VMInstruction.PopStatic(c.file, i)),
+                        keyword("pointer")
+                                .skipAnd(number())
+                                .map(i -> fixed(new VMInstruction.PopPointer(i))))),
+                regex(ARITHMETIC_PATTERN)
+                        .map(VMParser::arithmeticFrom),
+                keyword("label")
                         .skipAnd(regex(LABEL_PATTERN))
-                        .map(n -> functionState.toString().concat(n))
-                        .map(VMInstruction.Label::new))
-                .or(string("goto ")
+                        .<Step>map(n -> c -> new VMInstruction.Label(c.functionState.toString().concat(n))),
+                keyword("goto")
                         .skipAnd(regex(LABEL_PATTERN))
-                        .map(n -> functionState.toString().concat(n))
-                        .map(VMInstruction.GoTo::new))
-                .or(string("if-goto ")
+                        .<Step>map(n -> c -> new VMInstruction.GoTo(c.functionState.toString().concat(n))),
+                keyword("if-goto")
                         .skipAnd(regex(LABEL_PATTERN))
-                        .map(n -> functionState.toString().concat(n))
-                        .map(VMInstruction.IfGoTo::new))
-                .or(string("function ")
-                        .skipAnd(regex(LABEL_PATTERN).andSkip(string(" ")))
+                        .<Step>map(n -> c -> new VMInstruction.IfGoTo(c.functionState.toString().concat(n))),
+                keyword("function")
+                        .skipAnd(regex(LABEL_PATTERN).andSkip(SPACE))
                         .andThen(number())
-                        .map(p -> {
-                            this.functionState = this.functionState.define(name, p.left());
+                        .<Step>map(p -> c -> {
+                            c.functionState = c.functionState.define(c.file, p.left());
                             return new VMInstruction.DefineFunction(p.left(), p.right());
-                        }))
-                .or(string("call ")
-                        .skipAnd(regex(LABEL_PATTERN).andSkip(string(" ")))
+                        }),
+                keyword("call")
+                        .skipAnd(regex(LABEL_PATTERN).andSkip(SPACE))
                         .andThen(number())
-                        .map(p -> {
-                            var count = returnLabels.merge(p.left(), 0, (n, c) -> c + 1);
-                            return new VMInstruction.CallFunction(p.left(), p.right(), "%s$ret.%s.%d".formatted(p.left(), name, count));
-                        }))
-                .or(string("return")
-                        .map(ignored -> new VMInstruction.Return()))
-                .andSkip(eol().or(comment.map(VMInstruction::toString)))
-                .or(comment)
-                .repeating()
-                .andSkip(eof());
+                        .<Step>map(p -> c -> {
+                            var count = c.returnLabels.merge(p.left(), 0, (n, k) -> k + 1);
+                            return new VMInstruction.CallFunction(p.left(), p.right(), "%s$ret.%s.%d".formatted(p.left(), c.file, count));
+                        }),
+                string("return")
+                        .map(ignored -> fixed(VMInstruction.Stateless.RETURN)))
+                .andSkip(lineEnd),
+                comment);
     }
 
-    @Override
-    public Parsed<Queue<VMInstruction>> tryParse(CharSequence in) throws ParseException {
-        var stripped = in.toString()
-                .replace("\t", "")
-                .lines()
-                .filter(l -> !l.isBlank())
-                .map(String::strip)
-                .collect(Collectors.joining("\n"));
-        return lexer.tryParse(stripped);
+    private static Lexer<String> keyword(String keyword) {
+        return string(keyword).andSkip(SPACE);
+    }
+
+    private static Lexer<VMInstruction.Segment> segment() {
+        return regex(SEGMENT_PATTERN).andSkip(SPACE).map(VMInstruction.Segment::from);
     }
 
-    private VMInstruction arithmeticFrom(String name) {
+    private static Step arithmeticFrom(String name) {
         return switch (name) {
-            case "add" -> new VMInstruction.Add();
-            case "sub" -> new VMInstruction.Subtract();
-            case "neg" -> new VMInstruction.Negative();
-            case "eq" -> new VMInstruction.Equal(eqCount++);
-            case "lt" -> new VMInstruction.LessThan(ltCount++);
-            case "gt" -> new VMInstruction.GreaterThan(gtCount++);
-            case "and" -> new VMInstruction.And();
-            case "or" -> new VMInstruction.Or();
-            case "not" -> new VMInstruction.Not();
+            case "add" -> fixed(VMInstruction.Stateless.ADD);
+            case "sub" -> fixed(VMInstruction.Stateless.SUBTRACT);
+            case "neg" -> fixed(VMInstruction.Stateless.NEGATIVE);
+            case "eq" -> c -> new VMInstruction.Equal(c.file, c.eqCount++);
+            case "lt" -> c -> new VMInstruction.LessThan(c.file, c.ltCount++);
+            case "gt" -> c -> new VMInstruction.GreaterThan(c.file, c.gtCount++);
+            case "and" -> fixed(VMInstruction.Stateless.AND);
+            case "or" -> fixed(VMInstruction.Stateless.OR);
+            case "not" -> fixed(VMInstruction.Stateless.NOT);
             default -> throw new IllegalArgumentException("Unexpected value: " + name);
         };
     }
 
+    private static Step fixed(VMInstruction instruction) {
+        return ignored -> instruction;
+    }
+
+    /**
+     * A parsed instruction whose labels or counters depend on the instructions before it in the same file.
+     */
+    @FunctionalInterface
+    private interface Step {
+        VMInstruction resolve(Context context);
+    }
+
+    /**
+     * The state of one parse: which file and function the instructions belong to, and how many comparisons and calls
+     * have been numbered so far.
+     */
+    private static final class Context {
+        private final String file;
+        private final Map<String, Integer> returnLabels = new HashMap<>();
+        private int eqCount = 0;
+        private int ltCount = 0;
+        private int gtCount = 0;
+        private FunctionState functionState = new NoFunction();
+
+        private Context(String file) {
+            this.file = file;
+        }
+    }
+
     private record NoFunction() implements FunctionState {
         @Override
         public FunctionState define(String file, String name) {
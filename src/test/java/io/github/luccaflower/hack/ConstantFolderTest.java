@@ -0,0 +1,41 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConstantFolderTest {
+
+    private static VMInstruction.PushConstant constant(int val) {
+        return new VMInstruction.PushConstant((short) val);
+    }
+
+    @Test
+    void foldsArithmeticOnConstantsWithSixteenBitWraparound() {
+        var folded = ConstantFolder.fold(new ArrayDeque<>(List.of(
+                constant(32767), constant(2), new VMInstruction.Add(),
+                constant(0), new VMInstruction.Not(), new VMInstruction.And(),
+                new VMInstruction.PopTemp((short) 0))));
+
+        assertThat(folded).containsExactly(constant(-32767), new VMInstruction.PopTemp((short) 0));
+    }
+
+    @Test
+    void dropsIdentitiesOnUnknownOperands() {
+        var local = new VMInstruction.PushSegment(VMInstruction.Segment.LCL, (short) 0);
+        var folded = ConstantFolder.fold(new ArrayDeque<>(List.of(
+                local, constant(0), new VMInstruction.Add(), new VMInstruction.Negative(),
+                new VMInstruction.Negative(), constant(3), new VMInstruction.Subtract())));
+
+        assertThat(folded).containsExactly(local, constant(3), new VMInstruction.Subtract());
+    }
+
+    @Test
+    void negativeConstantsLoadWithoutNegativeAddresses() {
+        assertThat(constant(-5).toString()).startsWith("@5\nD=-A\n");
+        assertThat(constant(-32768).toString()).startsWith("@32767\nD=!A\n");
+    }
+}
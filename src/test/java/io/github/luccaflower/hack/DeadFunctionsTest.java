@@ -0,0 +1,37 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeadFunctionsTest {
+
+    @Test
+    void removesFunctionsUnreachableFromTheEntryPoint() {
+        var main = List.<VMInstruction>of(
+                new VMInstruction.DefineFunction("Main.main", 0),
+                new VMInstruction.CallFunction("Math.abs", 1, "Main$ret.abs.0"),
+                new VMInstruction.Return(),
+                new VMInstruction.DefineFunction("Main.unused", 0),
+                new VMInstruction.CallFunction("Math.max", 2, "Main$ret.max.0"),
+                new VMInstruction.Return());
+        var sys = List.<VMInstruction>of(
+                new VMInstruction.DefineFunction("Sys.init", 0),
+                new VMInstruction.CallFunction("Main.main", 0, "Sys$ret.main.0"),
+                new VMInstruction.DefineFunction("Math.abs", 0),
+                new VMInstruction.Return(),
+                new VMInstruction.DefineFunction("Math.max", 0),
+                new VMInstruction.Return());
+        var dead = new DeadFunctions(List.of(main, sys), "Sys.init");
+
+        assertThat(dead.removed()).containsExactly("Main.unused", "Math.max");
+        var kept = new ArrayList<VMInstruction>();
+        var filter = dead.filter(kept::add);
+        main.forEach(filter);
+        assertThat(kept).containsExactlyElementsOf(main.subList(0, 3));
+        assertThat(dead.words()).isPositive();
+    }
+}
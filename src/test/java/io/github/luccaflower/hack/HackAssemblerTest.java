@@ -0,0 +1,116 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HackAssemblerTest {
+
+    @Test
+    void resolvesForwardLabelsAndAllocatesVariablesFrom16() throws Exception {
+        var assembler = new HackAssembler().append("""
+                @i
+                M=0
+                @END
+                D;JGT
+                @j
+                AM=M+D
+                (END)
+                @i
+                0;JMP
+                """);
+        var text = new StringBuilder();
+        HackAssembler.writeText(assembler.assemble(), text);
+
+        assertThat(text).hasToString("""
+                0000000000010000
+                1110101010001000
+                0000000000000110
+                1110001100000001
+                0000000000010001
+                1111000010101000
+                0000000000010000
+                1110101010000111
+                """);
+    }
+
+    @Test
+    void encodesTextFormatAsAscii() throws Exception {
+        var program = new HackAssembler().append("@5\nD=-1\n@32767\nD=!A\n").assemble();
+        var text = new StringBuilder();
+        HackAssembler.writeText(program, text);
+
+        assertThat(StandardCharsets.US_ASCII.decode(HackAssembler.text(program)).toString()).isEqualTo(text.toString());
+    }
+
+    @Test
+    void rejectsUnknownInstructions() {
+        assertThatThrownBy(() -> new HackAssembler().append("D=D*A\n")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void instructionsAssembleToTheWordsOfTheirText() {
+        var program = List.<VMInstruction>of(
+                new VMInstruction.DefineFunction("Main.f", 0),
+                new VMInstruction.DefineFunction("Main.g", 3),
+                new VMInstruction.PushConstant((short) 7),
+                new VMInstruction.PushConstant((short) -1),
+                new VMInstruction.PushConstant((short) -5),
+                new VMInstruction.PushConstant(Short.MIN_VALUE),
+                new VMInstruction.PushSegment(VMInstruction.Segment.LCL, (short) 2),
+                new VMInstruction.PopSegment(VMInstruction.Segment.THAT, (short) 1),
+                new VMInstruction.PushTemp((short) 3),
+                new VMInstruction.PopTemp((short) 12),
+                new VMInstruction.PushStatic("Main", (short) 4),
+                new VMInstruction.PopStatic("Main", (short) 0),
+                new VMInstruction.PushPointer((short) 1),
+                new VMInstruction.PopPointer((short) 0),
+                new VMInstruction.Add(), new VMInstruction.Subtract(), new VMInstruction.Negative(),
+                new VMInstruction.And(), new VMInstruction.Or(), new VMInstruction.Not(),
+                new VMInstruction.Equal("Main", 0), new VMInstruction.GreaterThan("Main", 0),
+                new VMInstruction.LessThan("Main", 1),
+                new VMInstruction.CompareCall(VMInstruction.Comparison.LT, "Main", 2),
+                new VMInstruction.Label("Main.g$loop"),
+                new VMInstruction.IfGoTo("Main.g$loop"),
+                new VMInstruction.GoTo("Main.g$end"),
+                new VMInstruction.CallFunction("Main.f", 2, "Main.f$ret.Main.0"),
+                new VMInstruction.SharedCall("Main.f", 1, "Main.f$ret.Main.1"),
+                new VMInstruction.Label("Main.g$end"),
+                new VMInstruction.Return(),
+                new VMInstruction.SharedReturn(),
+                new VMInstruction.Null(),
+                new VMInstruction.Halt(),
+                new VMInstruction.ComparisonRoutine(VMInstruction.Comparison.LT),
+                new VMInstruction.CallRoutine(),
+                new VMInstruction.ReturnRoutine());
+        var text = new HackAssembler();
+        var words = new HackAssembler();
+        program.forEach(instruction -> text.append(VMInstruction.render(instruction)));
+        program.forEach(instruction -> instruction.assemble(words));
+
+        assertThat(words.assemble()).isEqualTo(text.assemble());
+    }
+
+    @Test
+    void includedFragmentsAssembleAsIfAppendedInOrder() {
+        var first = "@x\nM=0\n@second\n0;JMP\n(first)\n@y\nD=M\n";
+        var second = "(second)\n@z\nM=D\n@first\n0;JMP\n@x\nD=M\n";
+        var included = new HackAssembler().append("@y\n")
+                .include(new HackAssembler().append(first))
+                .include(new HackAssembler().append(second));
+
+        assertThat(included.assemble())
+                .isEqualTo(new HackAssembler().append("@y\n").append(first).append(second).assemble());
+    }
+
+    @Test
+    void fragmentsOnlyReferToPredefinedSymbols() {
+        assertThat(HackAssembler.fragment("@SP\nA=M\n@R13\n")).containsExactly((short) 0, (short) 0xfc20, (short) 13);
+        assertThatThrownBy(() -> HackAssembler.fragment("@x\n")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HackAssembler.fragment("(x)\n")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
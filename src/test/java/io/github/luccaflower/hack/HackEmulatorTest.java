@@ -0,0 +1,67 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HackEmulatorTest {
+
+    @Test
+    void runsTranslatedProgramsUntilTheyHalt() throws Exception {
+        var assembler = new HackAssembler();
+        assembler.append(new VMCodeWriter(new ArrayDeque<>(List.of(
+                new VMInstruction.PushConstant((short) 7),
+                new VMInstruction.PushConstant((short) 8),
+                new VMInstruction.Add(),
+                new VMInstruction.PushConstant((short) 3),
+                new VMInstruction.LessThan("Main", 0),
+                new VMInstruction.Halt()))).write());
+        var emulator = new HackEmulator(assembler.assemble());
+        var executed = emulator.run(10_000);
+
+        assertThat(emulator.halted()).isTrue();
+        assertThat(executed).isLessThan(10_000);
+        assertThat(emulator.peek(0)).isEqualTo((short) 257);
+        assertThat(emulator.peek(256)).isEqualTo((short) 0);
+    }
+
+    @Test
+    void stopsWhenTheCycleBudgetIsSpent() {
+        var jumpToA = (short) 0b1110101010000111;
+        var emulator = new HackEmulator(new short[]{1, jumpToA});
+        assertThat(emulator.run(100)).isEqualTo(100);
+        assertThat(emulator.halted()).isFalse();
+    }
+
+    @Test
+    void jumpsToTheLow15BitsOfA() throws Exception {
+        var assembler = new HackAssembler();
+        assembler.append("""
+                @16
+                M=M+1
+                @32767
+                A=!A
+                0;JMP
+                """);
+        var emulator = new HackEmulator(assembler.assemble());
+
+        assertThat(emulator.run(50)).isEqualTo(50);
+        assertThat(emulator.halted()).isFalse();
+        assertThat(emulator.pc()).isZero();
+        assertThat(emulator.peek(16)).isEqualTo((short) 10);
+    }
+
+    @Test
+    void mapsTheScreenAndKeyboardIntoRam() {
+        var emulator = new HackEmulator(new short[0]);
+        emulator.poke(HackEmulator.SCREEN + 32 + 1, (short) 0b100);
+        emulator.press(65);
+
+        assertThat(emulator.pixel(18, 1)).isTrue();
+        assertThat(emulator.pixel(17, 1)).isFalse();
+        assertThat(emulator.peek(HackEmulator.KEYBOARD)).isEqualTo((short) 65);
+    }
+}
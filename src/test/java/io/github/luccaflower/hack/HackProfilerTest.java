@@ -0,0 +1,50 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HackProfilerTest {
+
+    @Test
+    void countsCyclesAndCallsPerFunctionAndSamplesStacks() throws Exception {
+        var map = new SourceMap();
+        var assembler = new HackAssembler();
+        var unit = map.unit("Main");
+        var sink = unit.track(VMCodeWriter.streaming(unit.count(assembler)));
+        sink.accept(new VMInstruction.CallFunction("Sys.init", 0, "sysReturn"));
+        new VMParser("Main").parse(new StringReader("""
+                function Sys.init 0
+                push constant 1
+                call Main.twice 1
+                call Main.twice 1
+                pop static 0
+                label HALT
+                goto HALT
+                function Main.twice 0
+                push argument 0
+                push argument 0
+                add
+                return
+                """), sink, unit::line);
+        map.place(unit);
+        var emulator = new HackEmulator(assembler.assemble());
+        var profiler = new HackProfiler(emulator, map, 5);
+        var cycles = profiler.run(100_000);
+
+        assertThat(emulator.halted()).isTrue();
+        assertThat(emulator.peek(16)).isEqualTo((short) 4);
+        var functions = profiler.functions();
+        assertThat(functions.get("Main.twice").calls()).isEqualTo(2);
+        assertThat(functions.get("Sys.init").calls()).isEqualTo(1);
+        assertThat(functions.values().stream().mapToLong(HackProfiler.Cost::cycles).sum()).isEqualTo(cycles);
+        assertThat(profiler.lines()).containsKey("Main:11");
+        var folded = new StringBuilder();
+        profiler.writeFolded(folded);
+        assertThat(folded.toString()).contains("Sys.init;Main.twice ");
+        assertThat(folded.toString().lines().mapToLong(l -> Long.parseLong(l.substring(l.lastIndexOf(' ') + 1))).sum())
+                .isEqualTo(cycles);
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.luccaflower.hack;
+
+import io.github.luccaflower.hack.VMInstruction.Segment;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InlinerTest {
+
+    @Test
+    void expandsGettersWithArgumentsInStaticSlotsAndRestoresPointers() {
+        var getter = List.<VMInstruction>of(
+                new VMInstruction.DefineFunction("Point.getX", 0),
+                new VMInstruction.PushSegment(Segment.ARG, (short) 0),
+                new VMInstruction.PopPointer((short) 0),
+                new VMInstruction.PushSegment(Segment.THIS, (short) 0),
+                new VMInstruction.Return());
+        var inliner = new Inliner(List.of(getter), Inliner.DEFAULT_BUDGET);
+        var expanded = new ArrayList<VMInstruction>();
+        inliner.rewrite(expanded::add).accept(new VMInstruction.CallFunction("Point.getX", 1, "Point.getX$ret.Main.0"));
+
+        assertThat(expanded).containsExactly(
+                new VMInstruction.PopStatic("$inline.arg", (short) 0),
+                new VMInstruction.PushPointer((short) 0),
+                new VMInstruction.PopStatic("$inline.pointer", (short) 0),
+                new VMInstruction.PushStatic("$inline.arg", (short) 0),
+                new VMInstruction.PopPointer((short) 0),
+                new VMInstruction.PushSegment(Segment.THIS, (short) 0),
+                new VMInstruction.PushStatic("$inline.pointer", (short) 0),
+                new VMInstruction.PopPointer((short) 0));
+        assertThat(inliner.sites()).isOne();
+    }
+
+    @Test
+    void skipsFunctionsThatCallOrLeaveExtraValuesOnTheStack() {
+        var functions = List.<VMInstruction>of(
+                new VMInstruction.DefineFunction("Main.caller", 0),
+                new VMInstruction.CallFunction("Main.leaky", 0, "Main.leaky$ret.Main.0"),
+                new VMInstruction.Return(),
+                new VMInstruction.DefineFunction("Main.leaky", 0),
+                new VMInstruction.PushConstant((short) 1),
+                new VMInstruction.PushConstant((short) 2),
+                new VMInstruction.Return());
+
+        assertThat(new Inliner(List.of(functions), Inliner.DEFAULT_BUDGET).inlined()).isEmpty();
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+import static io.github.luccaflower.hack.Lexer.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LexerTest {
+
+    @Test
+    void failuresCarryTheOffsetWhereMatchingStopped() {
+        var lexer = string("push ").skipAnd(number());
+
+        assertThat(lexer.tryParse("push x")).isEqualTo(new Failure<>("No match for input", "push x", 5));
+        assertThat(lexer.tryParse("push 12 ")).isEqualTo(new Parsed<>((short) 12, 7));
+        assertThatThrownBy(() -> lexer.parse("push abc"))
+                .isInstanceOf(ParseException.class)
+                .hasMessage("No match for input\nabc");
+    }
+
+    @Test
+    void orBacktracksToTheOffsetItStartedAt() throws ParseException {
+        var lexer = string("ab").andThen(string("c")).map(p -> "abc").or(string("abd"));
+
+        assertThat(lexer.parse("abd")).isEqualTo("abd");
+        assertThat(lexer.tryParse("abe")).isInstanceOf(Failure.class);
+    }
+
+    @Test
+    void repeatingStopsAtTheFirstFailure() {
+        assertThat(string("a").repeating().tryParse("aab", 0)).satisfies(result -> {
+            assertThat(result).isInstanceOf(Parsed.class);
+            assertThat(((Parsed<?>) result).offset()).isEqualTo(2);
+        });
+    }
+
+    @ParameterizedTest
+    @CsvSource({"0,0", "32767,32767", "00042,42"})
+    void numberAcceptsShorts(String input, short expected) throws ParseException {
+        assertThat(number().parse(input)).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"32768", "65536", "000001", "99999999999"})
+    void numberRejectsValuesOutsideTheShortRange(String input) {
+        assertThat(number().tryParse(input)).isEqualTo(new Failure<>("Number out of range", input, 0));
+    }
+
+    @Test
+    void stringMatchesLiteralsAtAnOffset() {
+        assertThat(string("a.b").tryParse("xa.b", 1)).isEqualTo(new Parsed<>("a.b", 4));
+        assertThat(string("a.b").tryParse("xaxb", 1)).isInstanceOf(Failure.class);
+        assertThat(string("a.b").tryParse("xa.", 1)).isInstanceOf(Failure.class);
+    }
+
+    @Test
+    void choiceOnlyTriesAlternativesThatCanStartWithTheNextCharacter() throws ParseException {
+        var tried = new ArrayList<String>();
+        var lexer = choice(
+                tracked("add", tried),
+                tracked("and", tried),
+                tracked("sub", tried),
+                regex("\\d+"),
+                string("or"));
+
+        assertThat(lexer.parse("sub")).isEqualTo("sub");
+        assertThat(tried).containsExactly("sub");
+        tried.clear();
+        assertThat(lexer.parse("and")).isEqualTo("and");
+        assertThat(tried).containsExactly("add", "and");
+        assertThat(lexer.tryParse("xor")).isInstanceOf(Failure.class);
+        assertThat(lexer.first()).isEqualTo(characters("as0123456789o"));
+    }
+
+    @Test
+    void choiceKeepsTheOrderOfAlternativesThatMatchAnyCharacter() throws ParseException {
+        var lexer = choice(regex("a*").map(a -> "star"), string("a").map(a -> "literal"));
+
+        assertThat(lexer.parse("a")).isEqualTo("star");
+        assertThat(lexer.tryParse("b", 0)).isEqualTo(new Parsed<>("star", 0));
+        assertThat(lexer.first()).isNull();
+    }
+
+    @Test
+    void combinatorsKeepTheFirstCharactersOfTheirLeftSide() {
+        var lexer = string("push").andSkip(regex("[ \\t]+")).skipAnd(number()).map(Short::intValue);
+
+        assertThat(lexer.first()).isEqualTo(characters("p"));
+        assertThat(string("a").or(string("b")).first()).isEqualTo(characters("ab"));
+        assertThat(string("a").or(eof()).first()).isNull();
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', ignoreLeadingAndTrailingWhitespace = false, value = {
+            "[a-zA-Z._\\-0-9]+;abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ._-0123456789",
+            "local|argument|this|that;lat",
+            "(add|sub|neg|eq|lt|gt|and|or|not)\\b;asnelgo",
+            "\\d+;0123456789",
+            "[ \\t]+x?; \t",
+            "//[^\\n]*;/",
+    })
+    void patternsPredictTheirFirstCharacters(String regex, String first) {
+        assertThat(Patterns.first(Pattern.compile(regex))).isEqualTo(characters(first));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"\\s*", "[^\\n]*", "a?b", "(ab)*c", "a|", ".x", "[\\p{L}x]", "\\bx", "(?i)x", "x{0,1}", "é"})
+    void patternsThatMayStartAnywhereAreNotPredicted(String regex) {
+        assertThat(Patterns.first(Pattern.compile(regex))).isNull();
+    }
+
+    private static Lexer<String> tracked(String s, ArrayList<String> tried) {
+        var literal = string(s);
+        return new Lexer<>() {
+            @Override
+            public Result<String> tryParse(CharSequence in, int offset) {
+                tried.add(s);
+                return literal.tryParse(in, offset);
+            }
+
+            @Override
+            public BitSet first() {
+                return literal.first();
+            }
+        };
+    }
+
+    private static BitSet characters(String characters) {
+        var set = new BitSet();
+        characters.chars().forEach(set::set);
+        return set;
+    }
+}
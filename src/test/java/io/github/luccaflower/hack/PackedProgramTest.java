@@ -0,0 +1,41 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PackedProgramTest {
+
+    @Test
+    void decodesEveryParsedInstructionAndInternsNames() throws Exception {
+        var source = """
+                function Main.main 2
+                push constant 7
+                push argument 1
+                pop local 0
+                push static 3
+                pop pointer 1
+                label LOOP
+                push local 0
+                push constant 1
+                sub
+                eq
+                not
+                if-goto LOOP
+                call Math.abs 1
+                call Math.abs 1
+                goto LOOP
+                return
+                """;
+        var expected = new ArrayList<VMInstruction>();
+        new VMParser("Main").parse(new StringReader(source), expected::add);
+        var packed = new PackedProgram();
+        new VMParser("Main").parse(new StringReader(source), packed);
+
+        assertThat(packed).containsExactlyElementsOf(expected);
+        assertThat(packed.symbols().size()).isEqualTo(6);
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PeepholeOptimizerTest {
+
+    @Test
+    void pushConstantIntoTempSkipsTheStack() throws Exception {
+        var out = new StringBuilder();
+        var optimizer = new PeepholeOptimizer(out);
+        new VMInstruction.PushConstant((short) 7).emit(optimizer);
+        new VMInstruction.PopTemp((short) 0).emit(optimizer);
+        optimizer.flush();
+
+        assertThat(out).hasToString("""
+                @7
+                D=A
+                @R5
+                M=D
+                """);
+    }
+
+    @Test
+    void keepsRulesThatAreNotConfigured() throws Exception {
+        var out = new StringBuilder();
+        var optimizer = new PeepholeOptimizer(out, EnumSet.noneOf(PeepholeOptimizer.Rule.class));
+        new VMInstruction.PushConstant((short) 7).emit(optimizer);
+        new VMInstruction.PopTemp((short) 0).emit(optimizer);
+        optimizer.flush();
+
+        assertThat(out).hasToString(new VMInstruction.PushConstant((short) 7) + new VMInstruction.PopTemp((short) 0).toString());
+        assertThat(optimizer.removed()).isZero();
+    }
+
+    @Test
+    void doesNotRewriteAcrossLabels() throws Exception {
+        var out = new StringBuilder();
+        var optimizer = new PeepholeOptimizer(out);
+        new VMInstruction.PushConstant((short) 7).emit(optimizer);
+        new VMInstruction.Label("loop").emit(optimizer);
+        new VMInstruction.PopTemp((short) 0).emit(optimizer);
+        optimizer.flush();
+
+        assertThat(out.toString()).contains("M=M+1\n(loop)\n@SP\nAM=M-1\n");
+    }
+}
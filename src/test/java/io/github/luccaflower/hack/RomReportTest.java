@@ -0,0 +1,57 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RomReportTest {
+
+    @Test
+    void attributesWordsToFunctionsAndInstructionKinds() throws Exception {
+        var report = new RomReport();
+        var unit = report.unit("Main");
+        var out = new StringBuilder();
+        var sink = unit.track(VMCodeWriter.fragment(unit.count(out)));
+        sink.accept(new VMInstruction.PushConstant((short) 1));
+        sink.accept(new VMInstruction.DefineFunction("Main.main", 0));
+        sink.accept(new VMInstruction.Label("Main.main$LOOP"));
+        sink.accept(new VMInstruction.PushConstant((short) 2));
+        sink.accept(new VMInstruction.PushConstant((short) 3));
+        sink.accept(new VMInstruction.GoTo("Main.main$LOOP"));
+        unit.finish();
+
+        var push = VMInstruction.words(new VMInstruction.PushConstant((short) 1));
+        var jump = VMInstruction.words(new VMInstruction.GoTo("Main.main$LOOP"));
+        assertThat(report.words()).isEqualTo(Map.of(
+                "Main", Map.of("PushConstant", (long) push),
+                "Main.main", Map.of("PushConstant", 2L * push, "GoTo", (long) jump)));
+        assertThat(report.total()).isEqualTo(out.toString().lines().filter(l -> !l.startsWith("(")).count());
+        assertThat(report.largest()).containsExactly("Main.main", "Main");
+    }
+
+    @Test
+    void writesJsonAndCsv() throws Exception {
+        var report = new RomReport();
+        var unit = report.unit(RomReport.RUNTIME);
+        var counter = unit.count(new StringBuilder());
+        counter.append("@256\nD=A\n(LOOP)\n@LOOP\n0;JMP\n");
+        unit.finish();
+
+        var json = new StringBuilder();
+        report.writeJson(json);
+        var csv = new StringBuilder();
+        report.writeCsv(csv);
+
+        assertThat(json.toString()).isEqualTo("""
+                {"total":4,"functions":[
+                {"name":"$runtime","words":4,"kinds":{"Bootstrap":4}}
+                ]}
+                """);
+        assertThat(csv.toString()).isEqualTo("""
+                function,kind,words
+                $runtime,Bootstrap,4
+                """);
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SharedCallsTest {
+
+    @Test
+    void replacesCallsAndReturnsWithJumpsToSharedRoutines() {
+        var calls = new SharedCalls();
+        var rewritten = new ArrayList<VMInstruction>();
+        var sink = calls.rewrite(rewritten::add);
+        sink.accept(new VMInstruction.CallFunction("Main.f", 2, "Main$ret.f.0"));
+        sink.accept(new VMInstruction.Return());
+        sink.accept(new VMInstruction.Add());
+
+        assertThat(rewritten).containsExactly(new VMInstruction.SharedCall("Main.f", 2, "Main$ret.f.0"),
+                new VMInstruction.SharedReturn(), new VMInstruction.Add());
+        assertThat(calls.routines()).containsExactly(new VMInstruction.CallRoutine(), new VMInstruction.ReturnRoutine());
+        assertThat(calls.sites()).isEqualTo(2);
+    }
+}
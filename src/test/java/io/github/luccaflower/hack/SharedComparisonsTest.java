@@ -0,0 +1,30 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SharedComparisonsTest {
+
+    @Test
+    void replacesComparisonsWithCallsAndCountsSavings() {
+        var comparisons = new SharedComparisons();
+        var rewritten = new ArrayList<VMInstruction>();
+        var sink = comparisons.rewrite(rewritten::add);
+        for (int i = 0; i < 10; i++) {
+            sink.accept(new VMInstruction.Equal("Main", i));
+        }
+        sink.accept(new VMInstruction.Add());
+
+        assertThat(rewritten).first().isEqualTo(new VMInstruction.CompareCall(VMInstruction.Comparison.EQ, "Main", 0));
+        assertThat(rewritten).last().isEqualTo(new VMInstruction.Add());
+        assertThat(comparisons.routines())
+                .containsExactly(new VMInstruction.ComparisonRoutine(VMInstruction.Comparison.EQ));
+        var inlined = 10 * VMInstruction.words(new VMInstruction.Equal("Main", 0));
+        var shared = rewritten.stream().limit(10).mapToInt(VMInstruction::words).sum()
+                + VMInstruction.words(new VMInstruction.ComparisonRoutine(VMInstruction.Comparison.EQ));
+        assertThat(comparisons.saved()).isEqualTo(inlined - shared).isPositive();
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceMapTest {
+
+    @Test
+    void placesUnitsInRomOrderAndLooksUpAddresses() throws Exception {
+        var map = new SourceMap();
+        var first = map.unit("Main");
+        var out = new StringBuilder();
+        new VMParser("Main").parse(new StringReader("""
+                function Main.main 0
+                push constant 1
+                call Main.main 1
+                """), first.track(VMCodeWriter.fragment(first.count(out))), first::line);
+        var second = map.unit("Sys");
+        var sink = second.track(VMCodeWriter.fragment(second.count(out)));
+        second.line(4);
+        sink.accept(new VMInstruction.Add());
+        map.place(first);
+        map.place(second);
+
+        var push = VMInstruction.words(new VMInstruction.PushConstant((short) 1));
+        var call = VMInstruction.words(new VMInstruction.CallFunction("Main.main", 1, "Main.main$ret.Main.0"));
+        assertThat(map.size()).isEqualTo(push + call + VMInstruction.words(new VMInstruction.Add()));
+        assertThat(map.at(0)).isEqualTo(new SourceMap.Location("Main", 2, "Main.main"));
+        assertThat(map.at(push)).isEqualTo(new SourceMap.Location("Main", 3, "Main.main"));
+        assertThat(map.at(push + call)).isEqualTo(new SourceMap.Location("Sys", 4, "Sys"));
+        assertThat(map.at(map.size())).isNull();
+        assertThat(map.calls()).containsExactlyEntriesOf(Map.of(push, "Main.main"));
+    }
+
+    @Test
+    void readsWhatItWrites() throws Exception {
+        var map = new SourceMap();
+        var unit = map.unit("Main");
+        var sink = unit.track(VMCodeWriter.fragment(unit.count(new StringBuilder())));
+        unit.line(7);
+        sink.accept(new VMInstruction.CallFunction("Main.f", 0, "Main.f$ret.Main.0"));
+        map.place(unit);
+        var written = new StringBuilder();
+        map.write(written);
+
+        var read = SourceMap.read(new BufferedReader(new StringReader(written.toString())));
+        var again = new StringBuilder();
+        read.write(again);
+
+        assertThat(again.toString()).isEqualTo(written.toString());
+        assertThat(read.at(3)).isEqualTo(new SourceMap.Location("Main", 7, "Main"));
+    }
+}
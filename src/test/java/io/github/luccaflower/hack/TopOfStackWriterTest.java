@@ -0,0 +1,47 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopOfStackWriterTest {
+
+    @Test
+    void arithmeticBetweenPushesAndPopsStaysInD() throws Exception {
+        var out = new StringBuilder();
+        var writer = new TopOfStackWriter(out);
+        writer.accept(new VMInstruction.PushStatic("Main", (short) 0));
+        writer.accept(new VMInstruction.PushConstant((short) 7));
+        writer.accept(new VMInstruction.Add());
+        writer.accept(new VMInstruction.PopTemp((short) 0));
+        writer.flush();
+
+        assertThat(out).hasToString("""
+                @Main.0
+                D=M
+                @SP
+                A=M
+                M=D
+                @SP
+                M=M+1
+                @7
+                D=A
+                @SP
+                AM=M-1
+                D=M+D
+                @R5
+                M=D
+                """);
+    }
+
+    @Test
+    void spillsTheCachedValueBeforeLabels() throws Exception {
+        var out = new StringBuilder();
+        var writer = new TopOfStackWriter(out);
+        writer.accept(new VMInstruction.PushConstant((short) 0));
+        writer.accept(new VMInstruction.Label("LOOP"));
+        writer.flush();
+
+        assertThat(out).hasToString("D=0\n" + new VMInstruction.Push() + new VMInstruction.Label("LOOP"));
+    }
+}
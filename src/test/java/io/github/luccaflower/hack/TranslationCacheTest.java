@@ -0,0 +1,38 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TranslationCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void onlyTranslatesChangedSources() throws Exception {
+        var source = Files.writeString(directory.resolve("Main.vm"), "push constant 1\n");
+        var translations = new AtomicInteger();
+        TranslationCache.Translation translation = (name, input, out) -> {
+            translations.incrementAndGet();
+            out.append(name);
+        };
+
+        var first = new TranslationCache(directory.resolve("cache"), "").fragment(source, translation);
+        var second = new TranslationCache(directory.resolve("cache"), "").fragment(source, translation);
+        Files.writeString(source, "push constant 2\n");
+        var cache = new TranslationCache(directory.resolve("cache"), "");
+        var third = cache.fragment(source, translation);
+        cache.prune();
+
+        assertThat(translations).hasValue(2);
+        assertThat(second).isEqualTo(first);
+        assertThat(third).isNotEqualTo(first).hasContent("Main");
+        assertThat(first).doesNotExist();
+    }
+}
@@ -0,0 +1,28 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TranslatorTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"--peephole", "--cache", "--top-of-stack", "--fold-constants"})
+    void sourceMapsRejectPassesThatMoveCodeAwayFromItsLine(String option) {
+        assertThatThrownBy(() -> Translator.Options.parse(new String[]{"--source-map", option, "Main.vm"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining(option);
+    }
+
+    @Test
+    void sourceMapsCombineWithPassesThatKeepCodeOnItsLine() {
+        var options = Translator.Options.parse(new String[]{"--source-map", "--shared-calls",
+                "--shared-comparisons", "--inline", "--remove-dead-functions", "Main.vm"});
+
+        assertThat(options.sourceMap()).isTrue();
+        assertThat(options.source()).isEqualTo("Main.vm");
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VMCodeWriterTest {
+
+    @Test
+    void channelOutputMatchesStringOutputAcrossBufferBoundaries() throws Exception {
+        var program = new VMParser("thing").parse("""
+                function test 2
+                push constant 7
+                push local 1
+                eq
+                call thing.test 1
+                return
+                """);
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new AsciiChannelWriter(Channels.newChannel(bytes), 7)) {
+            var sink = VMCodeWriter.streaming(out);
+            program.forEach(sink);
+        }
+
+        assertThat(bytes.toString(StandardCharsets.US_ASCII))
+                .isEqualTo(new VMCodeWriter(program).write())
+                .doesNotContain("\n\n");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 3})
+    void functionsZeroTheirLocalsAndStartTheStackAboveThem(int locals) throws Exception {
+        var out = new StringBuilder();
+        new VMInstruction.DefineFunction("Main.f", locals).emit(out);
+        var emulator = new HackEmulator(new HackAssembler().append(out).assemble());
+        emulator.poke(0, (short) 300);
+        for (int address = 300; address < 305; address++) {
+            emulator.poke(address, (short) 9);
+        }
+        emulator.run(100);
+
+        assertThat(emulator.halted()).isTrue();
+        assertThat(emulator.peek(0)).isEqualTo((short) (300 + locals));
+        for (int address = 300; address < 305; address++) {
+            assertThat(emulator.peek(address)).isEqualTo((short) (address < 300 + locals ? 0 : 9));
+        }
+    }
+}
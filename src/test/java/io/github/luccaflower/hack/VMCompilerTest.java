@@ -0,0 +1,147 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VMCompilerTest {
+
+    @Test
+    void runsRecursiveFunctionsLikeTheInterpreter() throws Exception {
+        var program = parse("Main", """
+                function Main.fibonacci 0
+                push argument 0
+                push constant 2
+                lt
+                if-goto BASE
+                push argument 0
+                push constant 2
+                sub
+                call Main.fibonacci 1
+                push argument 0
+                push constant 1
+                sub
+                call Main.fibonacci 1
+                add
+                return
+                label BASE
+                push argument 0
+                return
+                """);
+        program.addAll(parse("Sys", """
+                function Sys.init 1
+                push constant 12
+                call Main.fibonacci 1
+                pop static 0
+                push constant 3000
+                pop pointer 1
+                push constant 40
+                neg
+                push constant 2
+                gt
+                not
+                pop that 2
+                label HALT
+                goto HALT
+                """));
+        var compiler = new VMCompiler(program, true);
+        var interpreter = new VMInterpreter(program, true);
+        compiler.run(Long.MAX_VALUE);
+        interpreter.run(Long.MAX_VALUE);
+
+        assertThat(compiler.halted()).isTrue();
+        assertThat(compiler.peek(16)).isEqualTo((short) 144);
+        assertThat(compiler.peek(3002)).isEqualTo((short) -1);
+        for (int address = 0; address < interpreter.peek(0); address++) {
+            assertThat(compiler.peek(address)).as("RAM[%d]", address).isEqualTo(interpreter.peek(address));
+        }
+    }
+
+    @Test
+    void notFollowedByIfGotoBranchesOnEveryValueButTrue() throws Exception {
+        var program = parse("Main", """
+                push constant 0
+                pop static 0
+                push constant 1
+                not
+                if-goto A
+                push static 0
+                push constant 1
+                add
+                pop static 0
+                label A
+                push constant 0
+                not
+                not
+                if-goto B
+                push static 0
+                push constant 10
+                add
+                pop static 0
+                label B
+                push constant 1
+                neg
+                not
+                if-goto C
+                push static 0
+                push constant 100
+                add
+                pop static 0
+                label C
+                label END
+                goto END
+                """);
+        var assembler = new HackAssembler();
+        assembler.append(new VMCodeWriter(new ArrayDeque<>(program)).write());
+        var emulator = new HackEmulator(assembler.assemble());
+        emulator.run(100_000);
+        var compiler = new VMCompiler(program, false);
+
+        assertThat(compiler.run(100_000)).isTrue();
+        assertThat(emulator.peek(16)).isEqualTo((short) 110);
+        assertThat(compiler.peek(16)).isEqualTo(emulator.peek(16));
+    }
+
+    @Test
+    void stopsLoopsThatOutrunTheBudget() throws Exception {
+        var program = parse("Main", """
+                label LOOP
+                push static 0
+                push constant 1
+                add
+                pop static 0
+                goto LOOP
+                """);
+        var compiler = new VMCompiler(program, false);
+
+        assertThat(compiler.run(100)).isFalse();
+        assertThat(compiler.peek(16)).isEqualTo((short) 99);
+        assertThat(compiler.peek(0)).isEqualTo((short) 256);
+    }
+
+    @Test
+    void rejectsJumpsOutOfTheirFunction() throws Exception {
+        var program = parse("Main", """
+                function Main.main 0
+                goto END
+                function Main.other 0
+                label END
+                goto END
+                """);
+        assertThatThrownBy(() -> new VMCompiler(program, false))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("END");
+    }
+
+    private static List<VMInstruction> parse(String name, String source) throws Exception {
+        var instructions = new ArrayList<VMInstruction>();
+        new VMParser(name).parse(new StringReader(source), instructions::add);
+        return instructions;
+    }
+}
@@ -0,0 +1,216 @@
+package io.github.luccaflower.hack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VMInterpreterTest {
+
+    @Test
+    void leavesMemoryAsTheTranslatedProgramDoes() throws Exception {
+        var program = parse("Main", """
+                push constant 0
+                pop static 0
+                label LOOP
+                push static 0
+                push constant 3
+                add
+                pop static 0
+                push static 0
+                push constant 30
+                lt
+                if-goto LOOP
+                push static 0
+                push constant 31
+                gt
+                label END
+                goto END
+                """);
+        var assembler = new HackAssembler();
+        assembler.append(new VMCodeWriter(new ArrayDeque<>(program)).write());
+        var emulator = new HackEmulator(assembler.assemble());
+        emulator.run(100_000);
+        var interpreter = new VMInterpreter(program, false);
+        interpreter.run(100_000);
+
+        assertThat(interpreter.halted()).isTrue();
+        assertThat(interpreter.fused()).isOne();
+        for (var address : List.of(0, 16, 256)) {
+            assertThat(interpreter.peek(address)).as("RAM[%d]", address).isEqualTo(emulator.peek(address));
+        }
+        assertThat(interpreter.peek(16)).isEqualTo((short) 30);
+    }
+
+    @Test
+    void notFollowedByIfGotoBranchesOnEveryValueButTrue() throws Exception {
+        var program = parse("Main", """
+                push constant 0
+                pop static 0
+                push constant 1
+                not
+                if-goto A
+                push static 0
+                push constant 1
+                add
+                pop static 0
+                label A
+                push constant 0
+                not
+                not
+                if-goto B
+                push static 0
+                push constant 10
+                add
+                pop static 0
+                label B
+                push constant 1
+                neg
+                not
+                if-goto C
+                push static 0
+                push constant 100
+                add
+                pop static 0
+                label C
+                label END
+                goto END
+                """);
+        var assembler = new HackAssembler();
+        assembler.append(new VMCodeWriter(new ArrayDeque<>(program)).write());
+        var emulator = new HackEmulator(assembler.assemble());
+        emulator.run(100_000);
+        var interpreter = new VMInterpreter(program, false);
+        interpreter.run(100_000);
+
+        assertThat(interpreter.fused()).isEqualTo(3);
+        assertThat(emulator.peek(16)).isEqualTo((short) 110);
+        assertThat(interpreter.peek(16)).isEqualTo(emulator.peek(16));
+    }
+
+    @Test
+    void runsFunctionsWithLocalsAsTheTranslatedProgramDoes() throws Exception {
+        var program = parse("Main", """
+                function Main.classify 2
+                push argument 0
+                push constant 3
+                and
+                pop local 0
+                push argument 0
+                push argument 0
+                add
+                pop local 1
+                push local 0
+                push constant 1
+                sub
+                push local 1
+                push local 1
+                sub
+                add
+                return
+                """);
+        program.addAll(parse("Sys", """
+                function Sys.init 2
+                push constant 5
+                pop local 0
+                label LOOP
+                push local 0
+                push constant 1
+                add
+                call Main.classify 1
+                not
+                if-goto TAKEN
+                push static 1
+                push constant 1
+                add
+                pop static 1
+                goto NEXT
+                label TAKEN
+                push static 0
+                push constant 1
+                add
+                pop static 0
+                label NEXT
+                push local 1
+                push local 0
+                add
+                pop local 1
+                push local 0
+                push constant 1
+                sub
+                pop local 0
+                push local 0
+                push constant 0
+                gt
+                if-goto LOOP
+                label HALT
+                goto HALT
+                """));
+        var assembler = new HackAssembler();
+        var sink = VMCodeWriter.streaming(assembler);
+        sink.accept(new VMInstruction.CallFunction("Sys.init", 0, "sysReturn"));
+        program.forEach(sink);
+        var emulator = new HackEmulator(assembler.assemble());
+        emulator.run(1_000_000);
+        var interpreter = new VMInterpreter(program, true);
+        interpreter.run(1_000_000);
+
+        assertThat(interpreter.halted()).isTrue();
+        assertThat(interpreter.fused()).isEqualTo(5);
+        assertThat(emulator.peek(16)).as("not taken, allocated first").isEqualTo((short) 1);
+        assertThat(emulator.peek(17)).as("taken").isEqualTo((short) 4);
+        assertThat(emulator.peek(262)).as("sum of the loop counter").isEqualTo((short) 15);
+        for (var address : List.of(0, 1, 2, 16, 17, 261, 262)) {
+            assertThat(interpreter.peek(address)).as("RAM[%d]", address).isEqualTo(emulator.peek(address));
+        }
+    }
+
+    @Test
+    void callsSysInitWithTheTranslatorsFrameLayout() throws Exception {
+        var program = parse("Main", """
+                function Main.increment 1
+                push argument 0
+                push constant 1
+                add
+                pop local 0
+                push local 0
+                return
+                """);
+        program.addAll(parse("Sys", """
+                function Sys.init 0
+                push constant 5
+                call Main.increment 1
+                pop static 0
+                label HALT
+                goto HALT
+                """));
+        var interpreter = new VMInterpreter(program, true);
+        interpreter.run(1_000);
+
+        assertThat(interpreter.halted()).isTrue();
+        assertThat(interpreter.fused()).isOne();
+        assertThat(interpreter.peek(16)).isEqualTo((short) 6);
+        assertThat(interpreter.peek(0)).isEqualTo((short) 261);
+        assertThat(interpreter.peek(1)).isEqualTo((short) 261);
+        assertThat(interpreter.peek(2)).isEqualTo((short) 256);
+    }
+
+    @Test
+    void rejectsCallsToUndefinedFunctions() throws Exception {
+        var program = parse("Main", "call Main.missing 0\n");
+        assertThatThrownBy(() -> new VMInterpreter(program, false))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Main.missing");
+    }
+
+    private static List<VMInstruction> parse(String name, String source) throws Exception {
+        var instructions = new ArrayList<VMInstruction>();
+        new VMParser(name).parse(new StringReader(source), instructions::add);
+        return instructions;
+    }
+}
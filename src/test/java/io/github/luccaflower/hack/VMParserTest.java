@@ -1,36 +1,62 @@
 package io.github.luccaflower.hack;
 
-import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Named;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class VMParserTest {
 
-    Lexer<Queue<VMInstruction>> lexer = new VMParser("thing");
-    @Test
-    void parsePushConst() throws Lexer.ParseException {
+    static Stream<Named<Function<String, InstructionParser>>> parsers() {
+        return Stream.of(Named.of("combinators", VMParser::new), Named.of("hand-written", FastVMParser::new));
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void parsePushConst(Function<String, InstructionParser> parser) throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
         assertThat(lexer.parse("push constant 1")).first().isEqualTo(new VMInstruction.PushConstant((short) 1));
     }
 
-    @Test
-    void add() throws Lexer.ParseException {
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void add(Function<String, InstructionParser> parser) throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
         assertThat(lexer.parse("add")).first().isEqualTo(new VMInstruction.Add());
     }
 
-    @Test
-    void comments() throws Lexer.ParseException {
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void comments(Function<String, InstructionParser> parser) throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
         assertThat(lexer.parse("//stuff")).first().isEqualTo(new VMInstruction.Null());
     }
 
-    @Test
-    void commentsAfterInstructions() throws Lexer.ParseException {
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void commentsAfterInstructions(Function<String, InstructionParser> parser) throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
         assertThat(lexer.parse("add //stuff")).first().isEqualTo(new VMInstruction.Add());
     }
 
-    @Test
-    void labelAfterFunctionPrependsFunctionToLabel() throws Lexer.ParseException {
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void labelAfterFunctionPrependsFunctionToLabel(Function<String, InstructionParser> parser)
+            throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
         var input = """
                 function test 2
                 label name
@@ -41,4 +67,189 @@ class VMParserTest {
         assertThat(result.remove()).isEqualTo(new VMInstruction.Label("thing.test$name"));
     }
 
-}
\ No newline at end of file
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void comparisonsAreScopedByFile(Function<String, InstructionParser> parser) throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
+        assertThat(lexer.parse("eq\ngt\neq"))
+                .containsExactly(new VMInstruction.Equal("thing", 0),
+                        new VMInstruction.GreaterThan("thing", 0),
+                        new VMInstruction.Equal("thing", 1));
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void ignoresIndentationBlankLinesAndCarriageReturns(Function<String, InstructionParser> parser)
+            throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
+        var input = "\t push\tconstant 1  \r\n\n\n   add\t// stuff\r\n\n";
+
+        assertThat(lexer.parse(input))
+                .containsExactly(new VMInstruction.PushConstant((short) 1), new VMInstruction.Add());
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void streamingParseMatchesWholeInputParse(Function<String, InstructionParser> parser) throws Exception {
+        var input = """
+                // comment
+                function test 0
+                push constant 7
+
+                eq
+                label loop
+                """;
+        var streamed = new ArrayList<VMInstruction>();
+        parser.apply("thing").parse(new StringReader(input), streamed::add);
+
+        assertThat(streamed).containsExactlyElementsOf(parser.apply("thing").parse(input).stream()
+                .filter(i -> !(i instanceof VMInstruction.Null))
+                .toList());
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void parsesEverySegmentAndArithmeticCommand(Function<String, InstructionParser> parser)
+            throws Lexer.ParseException {
+        var lexer = parser.apply("thing");
+        var input = "push local 1\npop argument 2\npush this 3\npop that 4\nadd\nsub\nneg\nand\nor\nnot\n";
+
+        assertThat(lexer.parse(input)).containsExactly(
+                new VMInstruction.PushSegment(VMInstruction.Segment.LCL, (short) 1),
+                new VMInstruction.PopSegment(VMInstruction.Segment.ARG, (short) 2),
+                new VMInstruction.PushSegment(VMInstruction.Segment.THIS, (short) 3),
+                new VMInstruction.PopSegment(VMInstruction.Segment.THAT, (short) 4),
+                new VMInstruction.Add(), new VMInstruction.Subtract(), new VMInstruction.Negative(),
+                new VMInstruction.And(), new VMInstruction.Or(), new VMInstruction.Not());
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void rejectsUnknownSegmentsCommandsAndOutOfRangeNumbers(Function<String, InstructionParser> parser) {
+        for (var input : List.of("push heap 1", "pop locale 1", "mul", "adder", "push constant 32768")) {
+            assertThat(parser.apply("thing").tryParse(input)).as(input).isInstanceOf(Lexer.Failure.class);
+        }
+        assertThatThrownBy(() -> streamed(parser.apply("thing"), "add\npush constant 40000\n"))
+                .isInstanceOf(Lexer.ParseException.class)
+                .hasMessageStartingWith("Line 2: ");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "push constant 32767\npop local 0\npush argument 1\npop this 2\npush that 3\npop temp 7\n",
+            "push static 4\npop static 4\npush pointer 1\npop pointer 0\npush constant 00012\n",
+            "add\nsub\nneg\neq\nlt\ngt\nand\nor\nnot\neq\nlt\ngt\n",
+            "label before\nfunction Main.main 2\nlabel LOOP_1\ngoto a.b-c_d\nif-goto LOOP_1\n",
+            "call Math.multiply 2\ncall Math.multiply 2\ncall Sys.init 0\nreturn // done\nreturn\n",
+            "  push\t \tconstant 1\t \r\r\n\r\n\t\n//\n  // add\nadd//sub\n\n\n",
+            "function a 0\r\nlabel x\r\ngoto x\r\n",
+    })
+    void handWrittenParserAgreesWithCombinators(String input) throws Exception {
+        assertThat(new FastVMParser("thing").parse(input)).containsExactlyElementsOf(new VMParser("thing").parse(input));
+        assertThat(streamed(new FastVMParser("thing"), input)).containsExactlyElementsOf(streamed(new VMParser("thing"), input));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "push constant 32768", "push constant 000001", "push constant", "push constant1", "pop constant 1",
+            "push locals 1", "pushconstant 1", "add1", "add-x", "Add", "eq.x", "returns", "return-x", "goto",
+            "goto $x", "if-goto", "function f", "call f", "call f 1 2", "label a b", "push constant -1", "add /",
+            "adds // x",
+    })
+    void bothParsersRejectTheSameLines(String input) {
+        assertThat(new VMParser("thing").tryParse(input)).isInstanceOf(Lexer.Failure.class);
+        assertThat(new FastVMParser("thing").tryParse(input)).isInstanceOf(Lexer.Failure.class);
+        assertThatThrownBy(() -> streamed(new VMParser("thing"), "add\n" + input))
+                .isInstanceOf(Lexer.ParseException.class).hasMessageStartingWith("Line 2: ");
+        assertThatThrownBy(() -> streamed(new FastVMParser("thing"), "add\n" + input))
+                .isInstanceOf(Lexer.ParseException.class).hasMessageStartingWith("Line 2: ");
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void streamingParseReadsInputLongerThanItsBuffer(Function<String, InstructionParser> parser) throws Exception {
+        var input = "push constant 1\r\nadd\n".repeat(20_000);
+        var lines = new ArrayList<Integer>();
+        var streamed = new ArrayList<VMInstruction>();
+        parser.apply("thing").parse(new StringReader(input), streamed::add, lines::add);
+
+        assertThat(streamed).hasSize(40_000);
+        assertThat(lines).startsWith(1, 2, 3).endsWith(40_000);
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void eachParseStartsFromAFreshState(Function<String, InstructionParser> parser) throws Exception {
+        var lexer = parser.apply("thing");
+        var input = "function f 0\neq\ncall g 0\nlabel end\n";
+
+        assertThat(lexer.parse(input)).containsExactlyElementsOf(lexer.parse(input));
+        assertThat(streamed(lexer, input)).containsExactlyElementsOf(streamed(lexer, input));
+        assertThat(lexer.parse("eq\nlabel start")).containsExactly(new VMInstruction.Equal("thing", 0),
+                new VMInstruction.Label("start"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void oneInstanceParsesDifferentUnitsFromManyThreadsAtOnce(Function<String, InstructionParser> parser)
+            throws Exception {
+        var shared = parser.apply(null);
+        var units = IntStream.range(0, 4).mapToObj(unit -> "Unit" + unit).toList();
+        var inputs = units.stream()
+                .map(unit -> IntStream.range(0, 2_000)
+                        .mapToObj(i -> "function f%d 0\neq\npush static %d\nlt\ncall f%d 1\nlabel l%d\n"
+                                .formatted(i % 7, i % (unit.length() + 3), i % 3, i))
+                        .collect(Collectors.joining()))
+                .toList();
+        var expected = new ArrayList<List<VMInstruction>>();
+        for (int unit = 0; unit < units.size(); unit++) {
+            expected.add(streamed(parser.apply(units.get(unit)), inputs.get(unit)));
+        }
+
+        var results = IntStream.range(0, 32).parallel()
+                .mapToObj(i -> {
+                    var unit = i % units.size();
+                    try {
+                        var parsed = i % 8 < 4
+                                ? streamed(shared, units.get(unit), inputs.get(unit))
+                                : List.copyOf(shared.parse(units.get(unit), inputs.get(unit)));
+                        return Map.entry(unit, parsed);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .toList();
+
+        assertThat(results).allSatisfy(result ->
+                assertThat(result.getValue()).containsExactlyElementsOf(expected.get(result.getKey())));
+        assertThat(expected.get(0)).contains(new VMInstruction.Equal("Unit0", 0),
+                new VMInstruction.PushStatic("Unit0", (short) 1));
+        assertThat(expected.get(3)).contains(new VMInstruction.Equal("Unit3", 0),
+                new VMInstruction.PushStatic("Unit3", (short) 1));
+    }
+
+    @ParameterizedTest
+    @MethodSource("parsers")
+    void sharedInstanceNeedsTheUnitNameOnEachCall(Function<String, InstructionParser> parser) throws Exception {
+        var shared = parser.apply(null);
+
+        assertThatThrownBy(() -> shared.parse("eq")).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> streamed(shared, "eq")).isInstanceOf(IllegalStateException.class);
+        assertThat(shared.parse("Main", "eq")).containsExactly(new VMInstruction.Equal("Main", 0));
+        assertThat(streamed(shared, "Main", "eq")).containsExactly(new VMInstruction.Equal("Main", 0));
+        assertThat(streamed(parser.apply("thing"), "Main", "eq")).containsExactly(new VMInstruction.Equal("Main", 0));
+    }
+
+    private static List<VMInstruction> streamed(InstructionParser parser, String input) throws Exception {
+        var instructions = new ArrayList<VMInstruction>();
+        parser.parse(new StringReader(input), instructions::add);
+        return instructions;
+    }
+
+    private static List<VMInstruction> streamed(InstructionParser parser, String name, String input) throws Exception {
+        var instructions = new ArrayList<VMInstruction>();
+        parser.parse(name, new StringReader(input), instructions::add);
+        return instructions;
+    }
+
+}